@@ -1,19 +1,36 @@
 package com.heliomug.job.traffic;
 
 public class Ageable {
+	private SimClock clock;
 	private long birthday;
 	private long lastUpdate;
 
 	public Ageable() {
-		birthday = lastUpdate = System.currentTimeMillis();
+		this(RealTimeClock.INSTANCE);
+	}
+	
+	public Ageable(SimClock clock) {
+		this.clock = clock;
+		birthday = lastUpdate = clock.millis();
+	}
+	
+	public SimClock getClock() { return clock; }
+	
+	public void setClock(SimClock clock) {
+		this.clock = clock;
+		birthday = lastUpdate = clock.millis();
+	}
+	
+	public long now() {
+		return clock.millis();
 	}
 
 	public double getAge() { 
-		return (System.currentTimeMillis() - birthday) / 1000.0; 
+		return (now() - birthday) / 1000.0; 
 	}
 
 	public double getDt() {
-		long steps = System.currentTimeMillis() - lastUpdate; 
+		long steps = now() - lastUpdate; 
 		lastUpdate += steps;
 		return steps / 1000.0;
 	}
@@ -4,4 +4,10 @@ import java.awt.geom.Rectangle2D;
 
 public interface Boundable {
 	Rectangle2D getBounds();
+	
+	// same test as Rectangle2D.intersects, for callers that don't want to allocate
+	default boolean overlaps(double minX, double minY, double maxX, double maxY) {
+		Rectangle2D r = getBounds();
+		return r.getMaxX() > minX && r.getMaxY() > minY && r.getMinX() < maxX && r.getMinY() < maxY;
+	}
 }
@@ -28,27 +28,41 @@ public class CircleSprite extends Ageable implements Boundable {
 	public void setLocation(double x, double y) { setLocation(new Point2D.Double(x, y)); }
 	public void translate(double dx, double dy) { setLocation(getX() + dx, getY() + dy); }
 	
+	public double distance(CircleSprite other) {
+		double dx = getX() - other.getX();
+		double dy = getY() - other.getY();
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+	
 	public boolean intersects(CircleSprite other) {
-		double d = location.distance(other.getLocation());
-		return d < radius + other.radius;
+		return distance(other) < getRadius() + other.getRadius();
 	}
 	
 	public Rectangle2D getBounds() {
-		return new Rectangle2D.Double(location.getX() - radius, location.getY() - radius, radius * 2, radius * 2);
+		double r = getRadius();
+		return new Rectangle2D.Double(getX() - r, getY() - r, r * 2, r * 2);
+	}
+	
+	public boolean overlaps(double minX, double minY, double maxX, double maxY) {
+		double x = getX();
+		double y = getY();
+		double r = getRadius();
+		return x + r > minX && y + r > minY && x - r < maxX && y - r < maxY;
 	}
 	
 	public boolean contains(Point2D p) {
-		double dx = this.location.getX() - p.getX();
-		double dy = this.location.getY() - p.getY();
-		return dx * dx + dy * dy < radius * radius;
+		double dx = getX() - p.getX();
+		double dy = getY() - p.getY();
+		double r = getRadius();
+		return dx * dx + dy * dy < r * r;
 	}
 
 	public boolean contains(CircleSprite sprite) {
-		double dist = location.distance(sprite.location);
-		return dist + sprite.radius < radius;
+		return distance(sprite) + sprite.getRadius() < getRadius();
 	}
 	
 	public void draw(Graphics2D g) {
-		g.fill(new Ellipse2D.Double(getX() - radius, getY() - radius, radius * 2, radius * 2));
+		double r = getRadius();
+		g.fill(new Ellipse2D.Double(getX() - r, getY() - r, r * 2, r * 2));
 	}
 }
@@ -0,0 +1,126 @@
+package com.heliomug.job.traffic;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Works out how long each lane is taking to drive from the speeds of the vehicles on it,
+ * and hands the time lost over driving it unimpeded to the MapGraph as a delay, so new
+ * routes steer round slow corridors.  Speeds are sampled a few times between refreshes.
+ * Delays are in the same units as lane length, smoothed from one refresh to the next and
+ * never negative, so no lane gets cheaper than its length and A* stays exact.
+ */
+public class CongestionMonitor {
+	public static final double DEFAULT_REFRESH_SECONDS = 5;
+	public static final double DEFAULT_TOLERANCE = .1;
+
+	private static final int SAMPLES_PER_REFRESH = 10;
+	// anyone slower counts as this fast, so a queue at a light doesn't cost forever
+	private static final double MIN_SPEED = Vehicle.MAX_SPEED / 20;
+	// how far each refresh moves a delay towards what was just measured
+	private static final double SMOOTHING = .5;
+	// lanes delayed by at least this much of their length are worth routing round
+	private static final double CONGESTED_RATIO = 1;
+
+	private MapGraph graph;
+	private double refreshSeconds;
+	private double tolerance;
+	private double sinceRefresh;
+	private double sinceSample;
+
+	// by edge id: summed 1 / speed of everyone seen on the lane since the last refresh, and how many
+	private double[] paceSum;
+	private int[] paceCount;
+	private double[] delays;
+	private Set<Lane> congested;
+
+	private long refreshes;
+	private int lastChanged;
+
+	public CongestionMonitor() {
+		this(DEFAULT_REFRESH_SECONDS, DEFAULT_TOLERANCE);
+	}
+
+	/*
+	 * tolerance is how far, as a fraction of a lane's length, its delay has to move
+	 * before the graph hears about it.
+	 */
+	public CongestionMonitor(double refreshSeconds, double tolerance) {
+		this.refreshSeconds = refreshSeconds;
+		this.tolerance = tolerance;
+		graph = null;
+		paceSum = new double[0];
+		paceCount = new int[0];
+		delays = new double[0];
+		congested = new HashSet<Lane>();
+	}
+
+	public double getRefreshSeconds() { return refreshSeconds; }
+	public void setRefreshSeconds(double seconds) { refreshSeconds = seconds; }
+	public double getTolerance() { return tolerance; }
+	public void setTolerance(double tolerance) { this.tolerance = tolerance; }
+	public long getRefreshCount() { return refreshes; }
+	public int getLastChangedCount() { return lastChanged; }
+	public double getDelay(int edge) { return edge < delays.length ? delays[edge] : 0; }
+	public Set<Lane> getCongestedLanes() { return congested; }
+
+	// call once a tick, between route searches; returns whether the graph was refreshed
+	public boolean step(double dt, MapGraph current) {
+		if (current != graph) {
+			graph = current;
+			paceSum = new double[graph.getEdgeCount()];
+			paceCount = new int[graph.getEdgeCount()];
+			delays = new double[graph.getEdgeCount()];
+			congested.clear();
+		} else if (graph.getEdgeCount() > delays.length) {
+			paceSum = Arrays.copyOf(paceSum, graph.getEdgeCount());
+			paceCount = Arrays.copyOf(paceCount, graph.getEdgeCount());
+			delays = Arrays.copyOf(delays, graph.getEdgeCount());
+		}
+		sinceSample += dt;
+		sinceRefresh += dt;
+		if (sinceSample >= refreshSeconds / SAMPLES_PER_REFRESH) {
+			sinceSample = 0;
+			sample();
+		}
+		if (sinceRefresh >= refreshSeconds) {
+			sinceRefresh = 0;
+			refresh();
+			return true;
+		}
+		return false;
+	}
+
+	private void sample() {
+		for (int e = 0 ; e < delays.length ; e++) {
+			List<Vehicle> occupants = graph.getEdgeLane(e).getOccupants();
+			for (int i = 0 ; i < occupants.size() ; i++) {
+				paceSum[e] += 1 / Math.max(occupants.get(i).getSpeed(), MIN_SPEED);
+			}
+			paceCount[e] += occupants.size();
+		}
+	}
+
+	private void refresh() {
+		congested.clear();
+		for (int e = 0 ; e < delays.length ; e++) {
+			Lane lane = graph.getEdgeLane(e);
+			double length = lane.getLength();
+			double measured = 0;
+			if (paceCount[e] > 0) {
+				double time = length * paceSum[e] / paceCount[e];
+				measured = Math.max(0, time * Vehicle.MAX_SPEED - length);
+			}
+			delays[e] += SMOOTHING * (measured - delays[e]);
+			if (delays[e] >= CONGESTED_RATIO * length) {
+				congested.add(lane);
+			}
+		}
+		Arrays.fill(paceSum, 0);
+		Arrays.fill(paceCount, 0);
+		lastChanged = graph.setDelays(delays, tolerance);
+		refreshes++;
+	}
+}
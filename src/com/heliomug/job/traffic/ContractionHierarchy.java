@@ -0,0 +1,506 @@
+package com.heliomug.job.traffic;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Shortest-route preprocessing for big maps.  Vertices are contracted one at a time,
+ * least important first; whenever removing a vertex would break a shortest route
+ * between two of its neighbours, a shortcut edge standing in for the two-lane detour
+ * is added.  Queries then search upwards from both ends only, so they settle a
+ * few hundred vertices where Dijkstra settles the whole map.
+ *
+ * Everything is kept by MapGraph vertex and edge ids, so a hierarchy can be saved
+ * and loaded back against the same map.
+ */
+public class ContractionHierarchy implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	// witness searches give up after this many vertices and add the shortcut anyway
+	private static final int WITNESS_SETTLE_LIMIT = 500;
+	// how much fewer edges counts for against spreading out, when picking what to contract next
+	private static final int EDGE_DIFFERENCE_WEIGHT = 2;
+
+	private final long fingerprint;
+	private final int n;
+	private final int[] rank;
+
+	// upward edges out of each vertex: v -> target, rank[v] < rank[target]
+	private final int[] upOffsets;
+	private final int[] upTargets;
+	private final double[] upWeights;
+	private final int[] upVia;
+
+	// upward edges into each vertex, searched backwards: source -> v, rank[source] > rank[v]
+	private final int[] downOffsets;
+	private final int[] downSources;
+	private final double[] downWeights;
+	private final int[] downVia;
+
+	// via >= 0 is a MapGraph edge id; via < 0 is a shortcut past vertex -via - 1
+
+	// query state for each thread that routes
+	private transient ThreadLocal<Query> queries;
+
+	public ContractionHierarchy(MapGraph graph) {
+		fingerprint = fingerprintOf(graph);
+		n = graph.getVertexCount();
+		rank = new int[n];
+
+		List<List<Arc>> out = new ArrayList<List<Arc>>(n);
+		List<List<Arc>> in = new ArrayList<List<Arc>>(n);
+		for (int v = 0 ; v < n ; v++) {
+			out.add(new ArrayList<Arc>());
+			in.add(new ArrayList<Arc>());
+		}
+		for (int e = 0 ; e < graph.getEdgeCount() ; e++) {
+			int from = graph.getEdgeFrom(e);
+			int to = graph.getEdgeTo(e);
+			double weight = graph.getEdgeWeight(e);
+			if (from == to || weight == Double.POSITIVE_INFINITY) continue;
+			addArc(out, in, new Arc(from, to, weight, e));
+		}
+
+		Contractor contractor = new Contractor(out, in);
+		contractor.contractAll();
+
+		// what's left at each vertex only leads to vertices contracted after it
+		List<Arc> up = new ArrayList<Arc>();
+		List<Arc> down = new ArrayList<Arc>();
+		for (int v = 0 ; v < n ; v++) {
+			up.addAll(out.get(v));
+			down.addAll(in.get(v));
+		}
+
+		upOffsets = new int[n + 1];
+		upTargets = new int[up.size()];
+		upWeights = new double[up.size()];
+		upVia = new int[up.size()];
+		for (Arc a : up) upOffsets[a.from + 1]++;
+		for (int v = 0 ; v < n ; v++) upOffsets[v + 1] += upOffsets[v];
+		int[] fill = Arrays.copyOf(upOffsets, n);
+		for (Arc a : up) {
+			int i = fill[a.from]++;
+			upTargets[i] = a.to;
+			upWeights[i] = a.weight;
+			upVia[i] = a.via;
+		}
+
+		downOffsets = new int[n + 1];
+		downSources = new int[down.size()];
+		downWeights = new double[down.size()];
+		downVia = new int[down.size()];
+		for (Arc a : down) downOffsets[a.to + 1]++;
+		for (int v = 0 ; v < n ; v++) downOffsets[v + 1] += downOffsets[v];
+		fill = Arrays.copyOf(downOffsets, n);
+		for (Arc a : down) {
+			int i = fill[a.to]++;
+			downSources[i] = a.from;
+			downWeights[i] = a.weight;
+			downVia[i] = a.via;
+		}
+	}
+
+	public static ContractionHierarchy load(String filename) throws IOException {
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(filename))) {
+			return (ContractionHierarchy) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public void save(String filename) throws IOException {
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(filename))) {
+			out.writeObject(this);
+		}
+	}
+
+	public boolean matches(MapGraph graph) {
+		return fingerprint == fingerprintOf(graph);
+	}
+
+	public int getShortcutCount() {
+		int count = 0;
+		for (int via : upVia) if (via < 0) count++;
+		for (int via : downVia) if (via < 0) count++;
+		return count;
+	}
+
+	// vertices taken off the queues by this thread's last query
+	public int getLastSettledCount() { return query().lastSettled; }
+
+	private Query query() {
+		if (queries == null) {
+			synchronized (this) {
+				if (queries == null) queries = ThreadLocal.withInitial(() -> new Query());
+			}
+		}
+		return queries.get();
+	}
+
+	/*
+	 * Returns the MapGraph edge ids of the shortest route from source to target, first
+	 * edge first, or null if target can't be reached.
+	 */
+	public int[] query(int source, int target) {
+		return query().run(source, target);
+	}
+
+	private int upSourceOf(int arc) {
+		return ownerOf(upOffsets, arc);
+	}
+
+	private int downTargetOf(int arc) {
+		return ownerOf(downOffsets, arc);
+	}
+
+	// the vertex whose slice of a CSR array holds index i
+	private int ownerOf(int[] offsets, int i) {
+		int lo = 0;
+		int hi = n - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (offsets[mid] <= i) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	private void unpack(int from, int to, int via, IntList edges) {
+		if (via >= 0) {
+			edges.add(via);
+			return;
+		}
+		int middle = -via - 1;
+		unpack(from, middle, viaOf(from, middle), edges);
+		unpack(middle, to, viaOf(middle, to), edges);
+	}
+
+	// the cheapest stored edge from -> to; a shortcut's halves always exist
+	private int viaOf(int from, int to) {
+		double bestWeight = Double.POSITIVE_INFINITY;
+		int bestVia = 0;
+		if (rank[from] < rank[to]) {
+			for (int i = upOffsets[from] ; i < upOffsets[from + 1] ; i++) {
+				if (upTargets[i] == to && upWeights[i] < bestWeight) {
+					bestWeight = upWeights[i];
+					bestVia = upVia[i];
+				}
+			}
+		} else {
+			for (int i = downOffsets[to] ; i < downOffsets[to + 1] ; i++) {
+				if (downSources[i] == from && downWeights[i] < bestWeight) {
+					bestWeight = downWeights[i];
+					bestVia = downVia[i];
+				}
+			}
+		}
+		return bestVia;
+	}
+
+	private static void addArc(List<List<Arc>> out, List<List<Arc>> in, Arc arc) {
+		// keep only the cheapest of parallel edges
+		List<Arc> outs = out.get(arc.from);
+		for (int i = 0 ; i < outs.size() ; i++) {
+			Arc old = outs.get(i);
+			if (old.to == arc.to) {
+				if (arc.weight < old.weight) {
+					outs.set(i, arc);
+					List<Arc> ins = in.get(arc.to);
+					ins.set(ins.indexOf(old), arc);
+				}
+				return;
+			}
+		}
+		outs.add(arc);
+		in.get(arc.to).add(arc);
+	}
+
+	private static long fingerprintOf(MapGraph graph) {
+		long h = 1125899906842597L;
+		h = 31 * h + graph.getVertexCount();
+		for (int v = 0 ; v < graph.getVertexCount() ; v++) {
+			h = 31 * h + Double.doubleToLongBits(graph.getIntersection(v).getX());
+			h = 31 * h + Double.doubleToLongBits(graph.getIntersection(v).getY());
+		}
+		h = 31 * h + graph.getEdgeCount();
+		for (int e = 0 ; e < graph.getEdgeCount() ; e++) {
+			h = 31 * h + graph.getEdgeFrom(e);
+			h = 31 * h + graph.getEdgeTo(e);
+			h = 31 * h + Double.doubleToLongBits(graph.getEdgeWeight(e));
+		}
+		return h;
+	}
+
+	private class Query {
+		final IndexedMinHeap forwardHeap = new IndexedMinHeap(n);
+		final IndexedMinHeap backwardHeap = new IndexedMinHeap(n);
+		final double[] forwardDist = new double[n];
+		final double[] backwardDist = new double[n];
+		final int[] forwardParent = new int[n];
+		final int[] backwardParent = new int[n];
+		final int[] touched = new int[n];
+		int touchedCount;
+		int lastSettled;
+
+		Query() {
+			Arrays.fill(forwardDist, Double.POSITIVE_INFINITY);
+			Arrays.fill(backwardDist, Double.POSITIVE_INFINITY);
+		}
+
+		int[] run(int source, int target) {
+			forwardHeap.clear();
+			backwardHeap.clear();
+			lastSettled = 0;
+
+			touch(source);
+			touch(target);
+			forwardDist[source] = 0;
+			backwardDist[target] = 0;
+			forwardParent[source] = -1;
+			backwardParent[target] = -1;
+			forwardHeap.addOrUpdate(source, 0);
+			backwardHeap.addOrUpdate(target, 0);
+			double best = source == target ? 0 : Double.POSITIVE_INFINITY;
+			int meet = source == target ? source : -1;
+
+			// both searches only climb, so each runs until its own queue can't beat best
+			while (true) {
+				boolean forward = !forwardHeap.isEmpty() && forwardHeap.peekKey() < best;
+				boolean backward = !backwardHeap.isEmpty() && backwardHeap.peekKey() < best;
+				if (!forward && !backward) break;
+				if (forward && (!backward || forwardHeap.peekKey() <= backwardHeap.peekKey())) {
+					int v = forwardHeap.extractMin();
+					lastSettled++;
+					for (int i = upOffsets[v] ; i < upOffsets[v + 1] ; i++) {
+						int w = upTargets[i];
+						double dist = forwardDist[v] + upWeights[i];
+						if (dist < forwardDist[w]) {
+							touch(w);
+							forwardDist[w] = dist;
+							forwardParent[w] = i;
+							forwardHeap.addOrUpdate(w, dist);
+						}
+						if (forwardDist[w] + backwardDist[w] < best) {
+							best = forwardDist[w] + backwardDist[w];
+							meet = w;
+						}
+					}
+				} else {
+					int v = backwardHeap.extractMin();
+					lastSettled++;
+					for (int i = downOffsets[v] ; i < downOffsets[v + 1] ; i++) {
+						int w = downSources[i];
+						double dist = backwardDist[v] + downWeights[i];
+						if (dist < backwardDist[w]) {
+							touch(w);
+							backwardDist[w] = dist;
+							backwardParent[w] = i;
+							backwardHeap.addOrUpdate(w, dist);
+						}
+						if (forwardDist[w] + backwardDist[w] < best) {
+							best = forwardDist[w] + backwardDist[w];
+							meet = w;
+						}
+					}
+				}
+			}
+
+			int[] toRet = null;
+			if (meet >= 0) {
+				IntList edges = new IntList();
+				List<Integer> upArcs = new ArrayList<Integer>();
+				for (int v = meet ; forwardParent[v] >= 0 ; v = upSourceOf(forwardParent[v])) {
+					upArcs.add(forwardParent[v]);
+				}
+				for (int i = upArcs.size() - 1 ; i >= 0 ; i--) {
+					int arc = upArcs.get(i);
+					unpack(upSourceOf(arc), upTargets[arc], upVia[arc], edges);
+				}
+				for (int v = meet ; backwardParent[v] >= 0 ; ) {
+					int arc = backwardParent[v];
+					int next = downTargetOf(arc);
+					unpack(v, next, downVia[arc], edges);
+					v = next;
+				}
+				toRet = edges.toArray();
+			}
+
+			for (int i = 0 ; i < touchedCount ; i++) {
+				forwardDist[touched[i]] = Double.POSITIVE_INFINITY;
+				backwardDist[touched[i]] = Double.POSITIVE_INFINITY;
+			}
+			touchedCount = 0;
+			return toRet;
+		}
+
+		private void touch(int v) {
+			if (forwardDist[v] == Double.POSITIVE_INFINITY && backwardDist[v] == Double.POSITIVE_INFINITY) {
+				touched[touchedCount++] = v;
+			}
+		}
+	}
+
+	private static class Arc {
+		final int from;
+		final int to;
+		final double weight;
+		final int via;
+
+		Arc(int from, int to, double weight, int via) {
+			this.from = from;
+			this.to = to;
+			this.weight = weight;
+			this.via = via;
+		}
+	}
+
+	private static class IntList {
+		int[] items = new int[16];
+		int size;
+
+		void add(int i) {
+			if (size == items.length) items = Arrays.copyOf(items, size * 2);
+			items[size++] = i;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(items, size);
+		}
+	}
+
+	private class Contractor {
+		private final List<List<Arc>> out;
+		private final List<List<Arc>> in;
+		private final int[] contractedNeighbours;
+
+		private final IndexedMinHeap witnessHeap;
+		private final double[] witnessDist;
+		private final int[] witnessTouched;
+		private int witnessTouchedCount;
+		// targets of the current search are marked with its stamp
+		private final int[] witnessTarget;
+		private int witnessStamp;
+
+		Contractor(List<List<Arc>> out, List<List<Arc>> in) {
+			this.out = out;
+			this.in = in;
+			contractedNeighbours = new int[n];
+			witnessHeap = new IndexedMinHeap(n);
+			witnessDist = new double[n];
+			witnessTouched = new int[n];
+			witnessTarget = new int[n];
+			Arrays.fill(witnessDist, Double.POSITIVE_INFINITY);
+		}
+
+		void contractAll() {
+			IndexedMinHeap order = new IndexedMinHeap(n);
+			for (int v = 0 ; v < n ; v++) {
+				order.addOrUpdate(v, priority(v, shortcutsFor(v)));
+			}
+			int next = 0;
+			while (!order.isEmpty()) {
+				int v = order.extractMin();
+				// priorities go stale as neighbours are contracted; only re-check the top
+				List<Arc> shortcuts = shortcutsFor(v);
+				double p = priority(v, shortcuts);
+				if (!order.isEmpty() && p > order.peekKey()) {
+					order.addOrUpdate(v, p);
+					continue;
+				}
+				for (Arc a : shortcuts) {
+					addArc(out, in, a);
+				}
+				rank[v] = next++;
+				for (Arc a : in.get(v)) {
+					out.get(a.from).remove(a);
+					contractedNeighbours[a.from]++;
+				}
+				for (Arc a : out.get(v)) {
+					in.get(a.to).remove(a);
+					contractedNeighbours[a.to]++;
+				}
+			}
+		}
+
+		// edge difference, plus a term that spreads contraction evenly over the map
+		private double priority(int v, List<Arc> shortcuts) {
+			return EDGE_DIFFERENCE_WEIGHT * (shortcuts.size() - in.get(v).size() - out.get(v).size()) + contractedNeighbours[v];
+		}
+
+		// the shortcuts contracting v would need; neighbour lists only hold uncontracted vertices
+		private List<Arc> shortcutsFor(int v) {
+			List<Arc> shortcuts = new ArrayList<Arc>();
+			double maxOut = 0;
+			for (Arc a : out.get(v)) {
+				maxOut = Math.max(maxOut, a.weight);
+			}
+			for (Arc inArc : in.get(v)) {
+				int u = inArc.from;
+				witnessStamp++;
+				int targets = 0;
+				for (Arc outArc : out.get(v)) {
+					if (outArc.to != u && witnessTarget[outArc.to] != witnessStamp) {
+						witnessTarget[outArc.to] = witnessStamp;
+						targets++;
+					}
+				}
+				if (targets == 0) continue;
+				witnessSearch(u, v, inArc.weight + maxOut, targets);
+				for (Arc outArc : out.get(v)) {
+					int w = outArc.to;
+					if (w == u) continue;
+					double through = inArc.weight + outArc.weight;
+					if (witnessDist[w] > through) {
+						shortcuts.add(new Arc(u, w, through, -v - 1));
+					}
+				}
+				clearWitness();
+			}
+			return shortcuts;
+		}
+
+		// Dijkstra from source among uncontracted vertices, never passing through skip
+		private void witnessSearch(int source, int skip, double limit, int targets) {
+			witnessHeap.clear();
+			witnessDist[source] = 0;
+			witnessTouched[witnessTouchedCount++] = source;
+			witnessHeap.addOrUpdate(source, 0);
+			int settled = 0;
+			while (!witnessHeap.isEmpty() && witnessHeap.peekKey() <= limit && settled < WITNESS_SETTLE_LIMIT) {
+				int v = witnessHeap.extractMin();
+				settled++;
+				if (witnessTarget[v] == witnessStamp && --targets == 0) break;
+				for (Arc a : out.get(v)) {
+					int w = a.to;
+					if (w == skip) continue;
+					double dist = witnessDist[v] + a.weight;
+					if (dist < witnessDist[w]) {
+						if (witnessDist[w] == Double.POSITIVE_INFINITY) {
+							witnessTouched[witnessTouchedCount++] = w;
+						}
+						witnessDist[w] = dist;
+						witnessHeap.addOrUpdate(w, dist);
+					}
+				}
+			}
+		}
+
+		private void clearWitness() {
+			for (int i = 0 ; i < witnessTouchedCount ; i++) {
+				witnessDist[witnessTouched[i]] = Double.POSITIVE_INFINITY;
+			}
+			witnessTouchedCount = 0;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package com.heliomug.job.traffic;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A uniform grid over a fixed rectangle.  Each item lives in the one cell holding the
+ * centre of its bounds, and queries look far enough into neighbouring cells to catch
+ * the largest item seen.  Anything outside the rectangle is clamped into the border
+ * cells, so it's still found, just not quickly.  Works best when items are all about
+ * the same size as a cell or smaller.
+ */
+public class GridIndex<T extends Boundable> implements SpatialIndex<T> {
+	private static final int MAX_CELLS = 1 << 20;
+
+	private double cellSize;
+	private Rectangle2D bounds;
+	private int cols;
+	private int rows;
+	private List<T>[] cells;
+	private double maxHalfWidth;
+	private double maxHalfHeight;
+	private int size;
+	
+	public GridIndex(double cellSize) {
+		this(cellSize, new Rectangle2D.Double(0, 0, 10, 10));
+	}
+	
+	public GridIndex(double cellSize, Rectangle2D bounds) {
+		this.cellSize = cellSize;
+		setup(bounds);
+	}
+	
+	private void setup(Rectangle2D bounds) {
+		this.bounds = bounds;
+		double cs = cellSize;
+		while ((bounds.getWidth() / cs + 1) * (bounds.getHeight() / cs + 1) > MAX_CELLS) {
+			cs *= 2;
+		}
+		this.cellSize = cs;
+		cols = (int)(bounds.getWidth() / cs) + 1;
+		rows = (int)(bounds.getHeight() / cs) + 1;
+		cells = newCells(cols * rows);
+		maxHalfWidth = maxHalfHeight = 0;
+		size = 0;
+	}
+	
+	// there's no making an array of List<T> directly
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <E> List<E>[] newCells(int count) {
+		return new List[count];
+	}
+	
+	public synchronized int size() {
+		return size;
+	}
+	
+	public double getCellSize() {
+		return cellSize;
+	}
+	
+	public synchronized void refill(List<T> li) {
+		if (li.size() == 0) {
+			refill(li, new Rectangle2D.Double(0, 0, 10, 10));
+		} else {
+			Rectangle2D r = li.get(0).getBounds();
+			Rectangle2D b = new Rectangle2D.Double(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+			for (T t : li) {
+				b.add(t.getBounds());
+			}
+			refill(li, b);
+		}
+	}
+	
+	public synchronized void refill(List<T> li, Rectangle2D bounds) {
+		setup(bounds);
+		for (T t : li) {
+			insert(t);
+		}
+	}
+	
+	public synchronized void clear() {
+		for (int i = 0 ; i < cells.length ; i++) {
+			cells[i] = null;
+		}
+		size = 0;
+	}
+	
+	private int col(double x) {
+		int c = (int)Math.floor((x - bounds.getX()) / cellSize);
+		return c < 0 ? 0 : (c >= cols ? cols - 1 : c);
+	}
+	
+	private int row(double y) {
+		int r = (int)Math.floor((y - bounds.getY()) / cellSize);
+		return r < 0 ? 0 : (r >= rows ? rows - 1 : r);
+	}
+	
+	private int cellOf(Rectangle2D r) {
+		return row(r.getCenterY()) * cols + col(r.getCenterX());
+	}
+	
+	public synchronized void insert(T b) {
+		Rectangle2D r = b.getBounds();
+		maxHalfWidth = Math.max(maxHalfWidth, r.getWidth() / 2);
+		maxHalfHeight = Math.max(maxHalfHeight, r.getHeight() / 2);
+		int cell = cellOf(r);
+		if (cells[cell] == null) {
+			cells[cell] = new ArrayList<T>(4);
+		}
+		cells[cell].add(b);
+		size++;
+	}
+	
+	public synchronized boolean remove(T b) {
+		return remove(b, b.getBounds());
+	}
+	
+	public synchronized boolean remove(T b, Rectangle2D at) {
+		List<T> cell = cells[cellOf(at)];
+		if (cell != null && cell.remove(b)) {
+			size--;
+			return true;
+		}
+		for (int i = 0 ; i < cells.length ; i++) {
+			if (cells[i] != null && cells[i].remove(b)) {
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public synchronized void update(T b, Rectangle2D oldBounds) {
+		Rectangle2D r = b.getBounds();
+		if (cellOf(oldBounds) != cellOf(r) || r.getWidth() / 2 > maxHalfWidth || r.getHeight() / 2 > maxHalfHeight) {
+			remove(b, oldBounds);
+			insert(b);
+		}
+	}
+	
+	public synchronized List<T> getOverlappers(Rectangle2D r) {
+		List<T> toRet = new ArrayList<T>();
+		forEachOverlapping(r, toRet::add);
+		return toRet;
+	}
+	
+	public synchronized void forEachOverlapping(Rectangle2D r, Consumer<? super T> visitor) {
+		forEachOverlapping(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(), visitor);
+	}
+	
+	public synchronized void forEachOverlapping(double minX, double minY, double maxX, double maxY, Consumer<? super T> visitor) {
+		int c0 = col(minX - maxHalfWidth);
+		int c1 = col(maxX + maxHalfWidth);
+		int r0 = row(minY - maxHalfHeight);
+		int r1 = row(maxY + maxHalfHeight);
+		for (int j = r0 ; j <= r1 ; j++) {
+			for (int i = c0 ; i <= c1 ; i++) {
+				List<T> cell = cells[j * cols + i];
+				if (cell == null) continue;
+				for (int k = 0 ; k < cell.size() ; k++) {
+					T b = cell.get(k);
+					if (b.overlaps(minX, minY, maxX, maxY)) {
+						visitor.accept(b);
+					}
+				}
+			}
+		}
+	}
+	
+	public synchronized boolean anyOverlapping(Rectangle2D r) {
+		return anyOverlapping(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY());
+	}
+	
+	public synchronized boolean anyOverlapping(double minX, double minY, double maxX, double maxY) {
+		int c0 = col(minX - maxHalfWidth);
+		int c1 = col(maxX + maxHalfWidth);
+		int r0 = row(minY - maxHalfHeight);
+		int r1 = row(maxY + maxHalfHeight);
+		for (int j = r0 ; j <= r1 ; j++) {
+			for (int i = c0 ; i <= c1 ; i++) {
+				List<T> cell = cells[j * cols + i];
+				if (cell == null) continue;
+				for (int k = 0 ; k < cell.size() ; k++) {
+					if (cell.get(k).overlaps(minX, minY, maxX, maxY)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+	
+	public synchronized List<T> getOverlappers(Boundable b) {
+		return getOverlappers(b.getBounds());
+	}
+	
+	public synchronized List<T> getOverlappers(double x, double y) {
+		return getOverlappers(new Point2D.Double(x, y));
+	}
+	
+	public synchronized List<T> getOverlappers(Point2D p) {
+		List<T> toRet = new ArrayList<T>();
+		int c0 = col(p.getX() - maxHalfWidth);
+		int c1 = col(p.getX() + maxHalfWidth);
+		int r0 = row(p.getY() - maxHalfHeight);
+		int r1 = row(p.getY() + maxHalfHeight);
+		for (int j = r0 ; j <= r1 ; j++) {
+			for (int i = c0 ; i <= c1 ; i++) {
+				List<T> cell = cells[j * cols + i];
+				if (cell == null) continue;
+				for (int k = 0 ; k < cell.size() ; k++) {
+					T b = cell.get(k);
+					if (b.getBounds().contains(p)) {
+						toRet.add(b);
+					}
+				}
+			}
+		}
+		return toRet;
+	}
+	
+	public synchronized void draw(Graphics2D g) {
+		g.setColor(Color.BLACK);
+		for (int i = 0 ; i <= cols ; i++) {
+			double x = bounds.getX() + i * cellSize;
+			g.draw(new Line2D.Double(x, bounds.getY(), x, bounds.getY() + rows * cellSize));
+		}
+		for (int j = 0 ; j <= rows ; j++) {
+			double y = bounds.getY() + j * cellSize;
+			g.draw(new Line2D.Double(bounds.getX(), y, bounds.getX() + cols * cellSize, y));
+		}
+		for (int i = 0 ; i < cells.length ; i++) {
+			if (cells[i] == null) continue;
+			for (Boundable b : cells[i]) {
+				g.setColor(Color.RED);
+				g.fill(b.getBounds());
+				g.setColor(Color.BLACK);
+				g.draw(b.getBounds());
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.heliomug.job.traffic;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of dense int ids (0 to capacity - 1) with double priorities.  Each
+ * id's place in the heap is tracked, so decreasing a key is O(log n) and nothing is
+ * boxed or hashed.
+ */
+public class IndexedMinHeap {
+	private int[] heap;
+	private int[] pos;
+	private double[] keys;
+	private int size;
+	
+	public IndexedMinHeap(int capacity) {
+		heap = new int[capacity];
+		pos = new int[capacity];
+		keys = new double[capacity];
+		Arrays.fill(pos, -1);
+		size = 0;
+	}
+	
+	public int size() { return size; }
+	public boolean isEmpty() { return size == 0; }
+	public int capacity() { return pos.length; }
+	public boolean contains(int id) { return pos[id] >= 0; }
+	public double keyOf(int id) { return keys[id]; }
+	
+	public int peek() { return heap[0]; }
+	public double peekKey() { return keys[heap[0]]; }
+	
+	public void clear() {
+		for (int i = 0 ; i < size ; i++) {
+			pos[heap[i]] = -1;
+		}
+		size = 0;
+	}
+	
+	// adds the id, or lowers its key if it's already in and the new key is smaller
+	public void addOrUpdate(int id, double key) {
+		int p = pos[id];
+		if (p < 0) {
+			keys[id] = key;
+			heap[size] = id;
+			pos[id] = size;
+			siftUp(size++);
+		} else if (key < keys[id]) {
+			keys[id] = key;
+			siftUp(p);
+		}
+	}
+	
+	public int extractMin() {
+		int toRet = heap[0];
+		pos[toRet] = -1;
+		size--;
+		if (size > 0) {
+			heap[0] = heap[size];
+			pos[heap[0]] = 0;
+			siftDown(0);
+		}
+		return toRet;
+	}
+	
+	private void siftUp(int index) {
+		int id = heap[index];
+		double key = keys[id];
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			int parentId = heap[parent];
+			if (keys[parentId] <= key) break;
+			heap[index] = parentId;
+			pos[parentId] = index;
+			index = parent;
+		}
+		heap[index] = id;
+		pos[id] = index;
+	}
+	
+	private void siftDown(int index) {
+		int id = heap[index];
+		double key = keys[id];
+		while (true) {
+			int child = index * 2 + 1;
+			if (child >= size) break;
+			if (child + 1 < size && keys[heap[child + 1]] < keys[heap[child]]) {
+				child++;
+			}
+			if (keys[heap[child]] >= key) break;
+			heap[index] = heap[child];
+			pos[heap[index]] = index;
+			index = child;
+		}
+		heap[index] = id;
+		pos[id] = index;
+	}
+}
@@ -3,79 +3,178 @@ package com.heliomug.job.traffic;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.Point2D;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-public class Intersection extends CircleSprite implements Runnable {
-	public static final Color PAVEMENT_COLOR = Color.BLACK;//new Color(64, 64, 64);
-	public static final Color FULL_COLOR = new Color(64, 64, 64);
-	public static final Color DANGER_COLOR = Color.YELLOW;
+public class Intersection extends CircleSprite {
 	public static final double DEFAULT_RADIUS = 4;
 	
+	// approach indices for vehicles not coming in off one of the lanes, and for ones starting out, headed for the middle
+	public static final int NO_APPROACH = 0;
+	public static final int CENTRE_APPROACH = 1;
+	
 	private static final int DANGER_LIMIT_TIME = 3000;
+	// rarely more than a few vehicles are in at once; it grows if need be
+	private static final int OCCUPANT_CAPACITY = 4;
 	
-	private HashSet<Vehicle> currentlyIn;
+	/*
+	 * Who's in, in the order they went in.  Only the simulation thread changes these, so
+	 * they need no lock, and count is volatile so isClear can be read from anywhere,
+	 * e.g. while drawing.
+	 */
+	private Vehicle[] occupants;
+	private volatile int count;
 	private long lastGrantedEntry;
+	// incoming lanes by approach index, numbered by the map when it starts
+	private List<Lane> approaches;
+	
+	// set once started on a map; update() runs when this goes off
+	private TimingWheel timers;
+	private TimingWheel.Timer wakeUp;
 	
 	public Intersection(double x, double y) {
 		this(new Point2D.Double(x, y));
-		currentlyIn = new HashSet<Vehicle>();
-		lastGrantedEntry = System.currentTimeMillis();
+		lastGrantedEntry = now();
 	}
 	
 	public Intersection(Point2D p) {
 		super(p, DEFAULT_RADIUS);
+		occupants = new Vehicle[OCCUPANT_CAPACITY];
+		count = 0;
+		approaches = new ArrayList<Lane>();
+		clearApproaches();
+	}
+	
+	public void setClock(SimClock clock) {
+		super.setClock(clock);
+		lastGrantedEntry = now();
+	}
+	
+	public int getApproachCount() { return approaches.size(); }
+	
+	// null for NO_APPROACH and CENTRE_APPROACH
+	public Lane getApproach(int index) { return approaches.get(index); }
+	
+	void clearApproaches() {
+		approaches.clear();
+		approaches.add(null);
+		approaches.add(null);
+	}
+	
+	// returns the lane's approach index
+	int addApproach(Lane lane) {
+		approaches.add(lane);
+		return approaches.size() - 1;
 	}
 	
-	public synchronized boolean isClear() {
-		return currentlyIn.isEmpty();
+	public boolean isClear() {
+		return count == 0;
 	}
 	
+	public int getOccupancy() { return count; }
+	
 	public int getLastGrantedEntry() {
-		return (int)(System.currentTimeMillis() - lastGrantedEntry);
+		return (int)(now() - lastGrantedEntry);
 	}
 	
-	// weird
-	public synchronized Vehicle getADudeInWay() {
-		for (Vehicle v : currentlyIn) {
-			return v;
-		}
-		return null;
+	// the first one in that's still there, or null
+	public Vehicle getADudeInWay() {
+		return count == 0 ? null : occupants[0];
 	}
 	
-	public synchronized boolean currentlyIn(Vehicle v) {
-		return currentlyIn.contains(v);
+	public boolean currentlyIn(Vehicle v) {
+		return indexOf(v) >= 0;
 	}
 	
-	public synchronized void takeIn(Vehicle v) {
+	private int indexOf(Vehicle v) {
+		for (int i = 0 ; i < count ; i++) {
+			if (occupants[i] == v) return i;
+		}
+		return -1;
 	}
 	
-	public synchronized void grantEntry(Vehicle v) {
-		if (v.isAlive()) {
-			lastGrantedEntry = System.currentTimeMillis();
-			currentlyIn.add(v);
+	// false if there's no room to hold v yet: it waits where it is and tries again next tick
+	public boolean takeIn(Vehicle v) {
+		return true;
+	}
+	
+	public void grantEntry(Vehicle v) {
+		if (!v.isAlive()) return;
+		lastGrantedEntry = now();
+		if (currentlyIn(v)) return;
+		if (count == occupants.length) {
+			occupants = Arrays.copyOf(occupants, count * 2);
 		}
+		occupants[count] = v;
+		count++;
 	}
 	
-	public synchronized void kickOut(Vehicle v) {
-		currentlyIn.remove(v);
+	public void kickOut(Vehicle v) {
+		int i = indexOf(v);
+		if (i < 0) return;
+		System.arraycopy(occupants, i + 1, occupants, i, count - i - 1);
+		occupants[count - 1] = null;
+		count--;
 	}
 
-	public void run() {
+	/*
+	 * Nothing polls intersections: they ask to be woken, by a vehicle arriving or
+	 * leaving or by a timer of their own, and do their work in update().
+	 */
+	protected void update() {
+	}
+	
+	// runs update() at the given time, unless it's already due to run sooner
+	protected void wakeAt(long at) {
+		if (timers != null && (!wakeUp.isScheduled() || at < wakeUp.getDue())) {
+			timers.schedule(wakeUp, at);
+		}
+	}
+	
+	// this tick if it's not been handled yet, otherwise the next
+	protected void wake() {
+		wakeAt(now());
+	}
+	
+	/*
+	 * A queue for vehicles waiting to come in off the given lane, or from anywhere if it's
+	 * null.  Only vehicles touching the intersection wait, so it needs room for as many as
+	 * fit bumper to bumper along that much of the lane, or round the whole edge.
+	 */
+	protected VehicleQueue newQueue(Lane approach) {
+		double length = Vehicle.DEFAULT_RADIUS * 2;
+		double room = approach == null ? 2 * Math.PI * getRadius() : Math.min(approach.getLength(), getRadius() + length);
+		return new VehicleQueue((int)Math.ceil(room / length) + 1);
 	}
 	
 	public void start(Map map) {
-		Thread t = new Thread(this);
-		t.start();
+		timers = map.getTimers();
+		wakeUp = timers.newTimer(this::update);
+	}
+	
+	// called when the intersection is taken off a running map; lets anyone waiting go
+	public void close() {
+		if (timers != null) {
+			timers.cancel(wakeUp);
+		}
 	}
 	
 	public void draw(Graphics2D g) {
 		if (isClear()) {
-			g.setColor(PAVEMENT_COLOR);
+			g.setColor(Colors.PAVEMENT_COLOR);
 		} else if (getLastGrantedEntry() > DANGER_LIMIT_TIME) {
-			g.setColor(DANGER_COLOR);
+			g.setColor(Colors.DANGER_COLOR);
 		} else {
-			g.setColor(FULL_COLOR);
+			g.setColor(Colors.FULL_COLOR);
 		}
 		super.draw(g);
 	}
+	
+	// only loaded once an intersection is drawn
+	static class Colors {
+		static final Color PAVEMENT_COLOR = Color.BLACK;//new Color(64, 64, 64);
+		static final Color FULL_COLOR = new Color(64, 64, 64);
+		static final Color DANGER_COLOR = Color.YELLOW;
+	}
 }
@@ -0,0 +1,207 @@
+package com.heliomug.job.traffic;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A 2-d tree over the centres of some Boundables, for nearest neighbour lookups.
+ *
+ * refill builds it balanced.  Inserted items wait in a short list that queries check
+ * one by one, and the tree is rebuilt by the insert that makes that list longer than the
+ * square root of the size, so maps built one intersection at a time stay cheap.  Removed
+ * items are only marked in the tree, and count towards the same rebuild.  Queries never
+ * change the tree, so any number of threads can make them between edits.
+ */
+public class KdTree<T extends Boundable> {
+	private Node root;
+	private List<T> items;
+	private List<Node> pending;
+	private int removed;
+
+	public KdTree() {
+		root = null;
+		items = new ArrayList<T>();
+		pending = new ArrayList<Node>();
+	}
+
+	public KdTree(List<T> li) {
+		refill(li);
+	}
+
+	public int size() { return items.size(); }
+
+	public void clear() {
+		root = null;
+		items = new ArrayList<T>();
+		pending = new ArrayList<Node>();
+		removed = 0;
+	}
+
+	public void refill(List<T> li) {
+		items = new ArrayList<T>(li);
+		pending = new ArrayList<Node>();
+		removed = 0;
+		List<Node> nodes = new ArrayList<Node>(li.size());
+		for (T item : li) {
+			nodes.add(new Node(item));
+		}
+		root = build(nodes, 0, nodes.size(), 0);
+	}
+
+	private Node build(List<Node> nodes, int from, int to, int depth) {
+		if (from >= to) return null;
+		final boolean vertical = depth % 2 == 0;
+		nodes.subList(from, to).sort(new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				return vertical ? Double.compare(a.x, b.x) : Double.compare(a.y, b.y);
+			}
+		});
+		int mid = (from + to) >>> 1;
+		Node node = nodes.get(mid);
+		node.vertical = vertical;
+		node.left = build(nodes, from, mid, depth + 1);
+		node.right = build(nodes, mid + 1, to, depth + 1);
+		return node;
+	}
+
+	public void insert(T item) {
+		items.add(item);
+		pending.add(new Node(item));
+		rebuildIfStale();
+	}
+
+	public boolean remove(T item) {
+		for (int i = 0 ; i < pending.size() ; i++) {
+			if (pending.get(i).item == item) {
+				pending.remove(i);
+				items.remove(item);
+				return true;
+			}
+		}
+		Rectangle2D bounds = item.getBounds();
+		Node node = find(root, item, bounds.getCenterX(), bounds.getCenterY());
+		if (node == null) return false;
+		node.removed = true;
+		removed++;
+		items.remove(item);
+		rebuildIfStale();
+		return true;
+	}
+
+	private void rebuildIfStale() {
+		long stale = pending.size() + removed;
+		if (stale * stale > items.size()) {
+			refill(items);
+		}
+	}
+
+	// equal keys can end up on either side of a split, so ties look both ways
+	private Node find(Node node, T item, double x, double y) {
+		if (node == null) return null;
+		if (node.item == item && !node.removed) return node;
+		double split = node.vertical ? x - node.x : y - node.y;
+		Node found = split <= 0 ? find(node.left, item, x, y) : null;
+		if (found == null && split >= 0) {
+			found = find(node.right, item, x, y);
+		}
+		return found;
+	}
+
+	public T nearest(Point2D p) {
+		return nearest(p.getX(), p.getY());
+	}
+
+	public T nearest(double x, double y) {
+		List<T> found = nearest(x, y, 1);
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	public List<T> nearest(Point2D p, int k) {
+		return nearest(p.getX(), p.getY(), k);
+	}
+
+	// the k items whose centres are closest to (x, y), closest first
+	public List<T> nearest(double x, double y, int k) {
+		Nearest search = new Nearest(x, y, Math.min(k, items.size()));
+		if (search.k > 0) {
+			search.visit(root);
+			for (Node node : pending) {
+				search.offer(node);
+			}
+		}
+		List<T> toRet = new ArrayList<T>(search.found.size());
+		for (Node node : search.found) {
+			toRet.add(node.item);
+		}
+		return toRet;
+	}
+
+	// a bounded sorted list, searched nearer side first and pruned by the kth best so far
+	private class Nearest {
+		final double x;
+		final double y;
+		final int k;
+		final List<Node> found;
+		final double[] distSq;
+
+		Nearest(double x, double y, int k) {
+			this.x = x;
+			this.y = y;
+			this.k = k;
+			found = new ArrayList<Node>(k + 1);
+			distSq = new double[k + 1];
+		}
+
+		double worst() {
+			return found.size() < k ? Double.POSITIVE_INFINITY : distSq[k - 1];
+		}
+
+		void visit(Node node) {
+			if (node == null) return;
+			if (!node.removed) offer(node);
+
+			double split = node.vertical ? x - node.x : y - node.y;
+			Node near = split < 0 ? node.left : node.right;
+			Node far = split < 0 ? node.right : node.left;
+			visit(near);
+			if (split * split < worst()) {
+				visit(far);
+			}
+		}
+
+		void offer(Node node) {
+			double dx = node.x - x;
+			double dy = node.y - y;
+			double d = dx * dx + dy * dy;
+			if (d >= worst()) return;
+			int i = found.size();
+			while (i > 0 && distSq[i - 1] > d) {
+				distSq[i] = distSq[i - 1];
+				i--;
+			}
+			distSq[i] = d;
+			found.add(i, node);
+			if (found.size() > k) found.remove(k);
+		}
+	}
+
+	private class Node {
+		final T item;
+		final double x;
+		final double y;
+		boolean vertical;
+		boolean removed;
+		Node left;
+		Node right;
+
+		Node(T item) {
+			this.item = item;
+			Rectangle2D bounds = item.getBounds();
+			this.x = bounds.getCenterX();
+			this.y = bounds.getCenterY();
+		}
+	}
+}
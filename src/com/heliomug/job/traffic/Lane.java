@@ -5,38 +5,61 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.heliomug.utils.MiscUtils;
 
 public class Lane {
 	public static final double DEFAULT_LANE_WIDTH = 1;
 
-	private static final Color LANE_COLOR = new Color(0, 0, 0);
-	
+	// made on first draw
 	private BasicStroke stroke;
 	
 	private Point2D start;
 	private Point2D finish;
+	private Point2D mid;
 	private double width;
 	
+	// the intersections at either end, if known when the lane was made
+	private Intersection startIntersection;
+	private Intersection finishIntersection;
+	// which of the finish intersection's approaches this is
+	private int approach;
+	
+	// ordered by how far along the lane they are, leader first
+	private List<Vehicle> occupants;
+	// on the map's list of lanes to keep in order
+	private boolean busy;
+	
 	public Lane(double x1, double y1, double x2, double y2) {
 		this.start = new Point2D.Double(x1, y1);
 		this.finish = new Point2D.Double(x2, y2);
+		this.mid = MiscUtils.midpoint(start, finish);
 		this.width = DEFAULT_LANE_WIDTH;
-		this.stroke = new BasicStroke((float)this.width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+		this.occupants = new ArrayList<Vehicle>();
+		this.approach = Intersection.NO_APPROACH;
 	}
 
 	public Point2D getStart() { return this.start; }
 	public Point2D getFinish() { return this.finish; }
-	public Point2D getMid() {
-		return MiscUtils.midpoint(start, finish);
-	}
+	public Point2D getMid() { return this.mid; }
 	
 	public double getHeading() {
 		return MiscUtils.heading(start, finish);
 	}
 	
 	
+	public Intersection getStartIntersection() { return startIntersection; }
+	public Intersection getFinishIntersection() { return finishIntersection; }
+	public int getApproach() { return approach; }
+	void setApproach(int index) { approach = index; }
+	
+	void connect(Intersection start, Intersection finish) {
+		this.startIntersection = start;
+		this.finishIntersection = finish;
+	}
+	
 	public boolean startsAt(Intersection intersection) {
 		return intersection.contains(start);
 	}
@@ -51,9 +74,87 @@ public class Lane {
 		return Math.sqrt(dx * dx + dy * dy);
 	}
 	
+	public double progressOf(double x, double y) {
+		double dx = finish.getX() - start.getX();
+		double dy = finish.getY() - start.getY();
+		return ((x - start.getX()) * dx + (y - start.getY()) * dy) / getLength();
+	}
+	
+	private double progressOf(Vehicle v) {
+		return progressOf(v.getX(), v.getY());
+	}
+	
+	public int getOccupancy() { return occupants.size(); }
+	boolean isBusy() { return busy; }
+	void setBusy(boolean busy) { this.busy = busy; }
+	public List<Vehicle> getOccupants() { return occupants; }
+	
+	public Vehicle getTail() {
+		return occupants.isEmpty() ? null : occupants.get(occupants.size() - 1);
+	}
+	
+	public Vehicle getLeader(Vehicle v) {
+		int slot = v.getLaneSlot();
+		return slot > 0 ? occupants.get(slot - 1) : null;
+	}
+	
+	public void enter(Vehicle v) {
+		double p = progressOf(v);
+		int i = occupants.size();
+		while (i > 0 && progressOf(occupants.get(i - 1)) < p) {
+			i--;
+		}
+		occupants.add(i, v);
+		renumber(i);
+	}
+	
+	public void leave(Vehicle v) {
+		int slot = v.getLaneSlot();
+		if (slot < 0 || slot >= occupants.size() || occupants.get(slot) != v) {
+			slot = occupants.indexOf(v);
+			if (slot < 0) return;
+		}
+		occupants.remove(slot);
+		v.setLaneSlot(-1);
+		renumber(slot);
+	}
+	
+	/*
+	 * Vehicles hardly ever pass each other, so the list is almost always still in order
+	 * and this insertion sort is linear.
+	 */
+	public void sortOccupants() {
+		int n = occupants.size();
+		if (n < 2) return;
+		int firstMoved = n;
+		for (int i = 1 ; i < n ; i++) {
+			Vehicle v = occupants.get(i);
+			double p = progressOf(v);
+			int j = i;
+			while (j > 0 && progressOf(occupants.get(j - 1)) < p) {
+				occupants.set(j, occupants.get(j - 1));
+				j--;
+			}
+			if (j != i) {
+				occupants.set(j, v);
+				firstMoved = Math.min(firstMoved, j);
+			}
+		}
+		renumber(firstMoved);
+	}
+	
+	private void renumber(int from) {
+		for (int i = from ; i < occupants.size() ; i++) {
+			occupants.get(i).setLaneSlot(i);
+		}
+	}
+	
 	public void draw(Graphics2D g) {
+		if (stroke == null) {
+			stroke = new BasicStroke((float)this.width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+		}
 		g.setStroke(stroke);
-		g.setColor(LANE_COLOR);
+		g.setColor(Color.BLACK);
 		g.draw(new Line2D.Double(start, finish));
 		g.setColor(Color.WHITE);
 		g.setStroke(TrafficPanel.STANDARD_STROKE);
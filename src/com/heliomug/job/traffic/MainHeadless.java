@@ -0,0 +1,100 @@
+package com.heliomug.job.traffic;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs a world without a display as fast as the CPU allows and prints summary stats.
+ * 
+ * Usage: MainHeadless [--grid] [--ch[=FILE]] [--routing=STRATEGY] [--congestion[=SECONDS]] WORLD SECONDS [MAX_VEHICLES]
+ * where WORLD is "default", "small", "circle[:STEPS:RADIUS]" or the path of a scenario file,
+ * --grid indexes vehicles with a GridIndex instead of a QuadTree, and --ch routes with a
+ * contraction hierarchy, kept in FILE between runs if given.  --routing picks any other
+ * RoutingStrategy by name.  --congestion routes by measured travel time, refreshed every
+ * SECONDS.
+ */
+public class MainHeadless {
+	private static final int DEFAULT_CIRCLE_STEPS = 12;
+	private static final double DEFAULT_CIRCLE_RADIUS = 30;
+	
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		boolean grid = false;
+		boolean ch = false;
+		String chFile = null;
+		RoutingStrategy strategy = null;
+		double congestion = 0;
+		while (args.length > 0 && args[0].startsWith("--")) {
+			if (args[0].equals("--grid")) {
+				grid = true;
+			} else if (args[0].startsWith("--ch")) {
+				ch = true;
+				if (args[0].startsWith("--ch=")) chFile = args[0].substring("--ch=".length());
+			} else if (args[0].startsWith("--routing=")) {
+				strategy = RoutingStrategy.valueOf(args[0].substring("--routing=".length()).toUpperCase());
+			} else if (args[0].startsWith("--congestion")) {
+				congestion = CongestionMonitor.DEFAULT_REFRESH_SECONDS;
+				if (args[0].startsWith("--congestion=")) congestion = Double.parseDouble(args[0].substring("--congestion=".length()));
+			}
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		if (args.length < 2) {
+			System.err.println("usage: MainHeadless [--grid] [--ch[=FILE]] [--routing=STRATEGY] [--congestion[=SECONDS]] WORLD SECONDS [MAX_VEHICLES]");
+			System.exit(1);
+		}
+
+		World world;
+		try {
+			world = loadWorld(args[0]);
+			if (strategy != null) world.getMap().setRoutingStrategy(strategy);
+			if (ch) world.getMap().useContractionHierarchy(chFile);
+		} catch (IOException e) {
+			System.err.println("Couldn't load world: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		double seconds = Double.parseDouble(args[1]);
+		if (args.length > 2) {
+			world.setMaxVehicles(Integer.parseInt(args[2]));
+		}
+		if (grid) {
+			world.useGridIndex();
+		}
+		if (congestion > 0) {
+			world.useCongestionRouting(congestion);
+		}
+		
+		long start = System.nanoTime();
+		world.runFor(seconds);
+		double wall = (System.nanoTime() - start) / 1e9;
+		
+		long ticks = world.getEngine().getTicks();
+		System.out.println(String.format("simulated time:    %.1f s", world.getEngine().getTime()));
+		System.out.println(String.format("wall time:         %.2f s", wall));
+		System.out.println(String.format("ticks/sec:         %.0f", ticks / wall));
+		System.out.println(String.format("vehicles now:      %d", world.getNumberOfVehicles()));
+		System.out.println(String.format("vehicles born:     %d", world.getVehiclesEverBorn()));
+		System.out.println(String.format("trips finished:    %d", world.getTripsFinished()));
+		System.out.println(String.format("mean travel time:  %.2f s", world.getMeanTripTime()));
+		RoutingService routing = world.getRoutingService();
+		System.out.println(String.format("routes found:      %d on %d workers", routing.getRoutesFound(), routing.getWorkers()));
+		System.out.println(String.format("routing latency:   %.2f ms mean, %.2f ms max", routing.getMeanLatencyMillis(), routing.getMaxLatencyMillis()));
+		System.out.println(String.format("routing queue:     %d max", routing.getMaxQueueDepth()));
+		System.out.println(String.format("detours:           %d", world.getDetours()));
+	}
+	
+	public static World loadWorld(String name) throws IOException {
+		if (name.equals("default")) {
+			return World.defaultWorld();
+		} else if (name.equals("small")) {
+			return World.smallWorld();
+		} else if (name.startsWith("circle")) {
+			String[] parts = name.split(":");
+			int steps = parts.length > 1 ? Integer.parseInt(parts[1]) : DEFAULT_CIRCLE_STEPS;
+			double r = parts.length > 2 ? Double.parseDouble(parts[2]) : DEFAULT_CIRCLE_RADIUS;
+			return World.circleWorld(steps, r);
+		} else {
+			return World.loadScenario(name);
+		}
+	}
+}
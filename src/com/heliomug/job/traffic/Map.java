@@ -3,29 +3,103 @@ package com.heliomug.job.traffic;
 import java.awt.Graphics2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 public class Map {
 	private static final double RADIUS_MEETING_RATIO = .75;
 	
 	private List<Intersection> intersections;
 	private List<Lane> lanes;
+	// lanes with two or more on, which are all that need keeping in order; closed ones stay until they empty
+	private List<Lane> busyLanes;
 
-	private QuadTree<Intersection> intersectionTree;
+	private SpatialIndex<Intersection> intersectionTree;
+	// kept up to date as intersections are added, so lookups while building don't rebuild the graph
+	private KdTree<Intersection> intersectionPoints;
 
 	private MapGraph graph;
 	private Rectangle2D bounds;
 	
+	// once the graph's been built, edits patch it instead of marking it out of date
 	private boolean upToDate;
+	private boolean started;
+	
+	private SimClock clock;
+	// everything random about a run comes from here, so a seed repeats it
+	private Random random;
+	// what intersections wake up on
+	private TimingWheel timers;
+	private RoutingStrategy routingStrategy;
+	private long nextHopBudget;
 	
 	public Map() {
 		intersections = new ArrayList<Intersection>();
 		lanes = new ArrayList<Lane>();
+		busyLanes = new ArrayList<Lane>();
 		intersectionTree = new QuadTree<Intersection>();
-		graph = new MapGraph(intersections, lanes);
+		intersectionPoints = new KdTree<Intersection>();
+		routingStrategy = RoutingStrategy.A_STAR;
+		nextHopBudget = MapGraph.DEFAULT_NEXT_HOP_BUDGET;
+		graph = new MapGraph(intersections, lanes, routingStrategy);
 		bounds = null;
 		upToDate = false;
+		started = false;
+		clock = RealTimeClock.INSTANCE;
+		timers = new TimingWheel(clock.millis());
+		random = new Random();
+	}
+	
+	public SimClock getClock() { return clock; }
+	public TimingWheel getTimers() { return timers; }
+	public Random getRandom() { return random; }
+	public void setRandom(Random random) { this.random = random; }
+	public RoutingStrategy getRoutingStrategy() { return routingStrategy; }
+	
+	public void setRoutingStrategy(RoutingStrategy strategy) {
+		routingStrategy = strategy;
+		graph.setRoutingStrategy(strategy);
+	}
+	
+	/*
+	 * Switches routing to a contraction hierarchy.  If cacheFile names a hierarchy saved
+	 * for this same map it's loaded, otherwise one is built and saved there.  A null
+	 * cacheFile just builds one.
+	 */
+	public void useContractionHierarchy(String cacheFile) throws IOException {
+		MapGraph graph = getGraph();
+		ContractionHierarchy ch = null;
+		if (cacheFile != null && new File(cacheFile).exists()) {
+			ch = ContractionHierarchy.load(cacheFile);
+			if (!ch.matches(graph)) ch = null;
+		}
+		if (ch == null) {
+			ch = graph.buildContractionHierarchy();
+			if (cacheFile != null) ch.save(cacheFile);
+		}
+		graph.setContractionHierarchy(ch);
+		setRoutingStrategy(RoutingStrategy.CONTRACTION_HIERARCHY);
+	}
+	
+	/*
+	 * Memory allowed for NEXT_HOP routing tables.  Edits only throw away the ones they
+	 * could change.
+	 */
+	public void setNextHopBudget(long bytes) {
+		nextHopBudget = bytes;
+		graph.setNextHopBudget(bytes);
+	}
+	
+	// before start(), since timers set against the old clock are dropped
+	public void setClock(SimClock clock) {
+		this.clock = clock;
+		timers = new TimingWheel(clock.millis());
+		for (Intersection i : intersections) {
+			i.setClock(clock);
+		}
 	}
 	
 	public MapGraph getGraph() { 
@@ -34,8 +108,9 @@ public class Map {
 	} 
 	
 	public List<Lane> getLanes() { return this.lanes; }
+	public List<Intersection> getIntersections() { return this.intersections; }
 	
-	public QuadTree<Intersection> getIntersectionTree() { 
+	public SpatialIndex<Intersection> getIntersectionTree() { 
 		if (!upToDate) update();
 		return this.intersectionTree; 
 	}
@@ -47,8 +122,8 @@ public class Map {
 
 	public Point2D getRandomPoint() {
 		if (!upToDate) update();
-		double x = bounds.getX() + Math.random() * bounds.getWidth();
-		double y = bounds.getY() + Math.random() * bounds.getHeight();
+		double x = bounds.getX() + random.nextDouble() * bounds.getWidth();
+		double y = bounds.getY() + random.nextDouble() * bounds.getHeight();
 		return new Point2D.Double(x, y);
 	}
 	
@@ -68,13 +143,28 @@ public class Map {
 		this.bounds = new Rectangle2D.Double(xMin, yMin, xMax - xMin, yMax - yMin);
 	}
 
+	// the bounds only shrink if what's removed was on their edge
+	private boolean onEdgeOfBounds(Rectangle2D r) {
+		return r.getMinX() <= bounds.getMinX() || r.getMinY() <= bounds.getMinY() 
+				|| r.getMaxX() >= bounds.getMaxX() || r.getMaxY() >= bounds.getMaxY();
+	}
+
 	private void update() {
-		graph = new MapGraph(intersections, lanes);
 		intersectionTree.refill(intersections);
+		graph = new MapGraph(intersections, lanes, intersectionTree, routingStrategy);
+		graph.setNextHopBudget(nextHopBudget);
 		computeBounds();
 		upToDate = true;
 	}
 
+	public void setSignalPlan(SignalPlan plan) {
+		for (Intersection i : intersections) {
+			if (i instanceof IntersectionLit) {
+				((IntersectionLit)i).setPlan(plan);
+			}
+		}
+	}
+	
 	// messy
 	public void setLightDuration(int dur) {
 		for (Intersection i : intersections) {
@@ -104,12 +194,15 @@ public class Map {
 		double yMed = Math.sin(heading + Math.PI/2) * median / 2;
 		
 		for (int i = 0 ; i < leavingOne ; i++) {
-			addLane(new Lane(x1 + xOff * i + xOff / 2 + xMed, y1 + yOff * i + yOff / 2 + yMed, x2 + xOff * i + xOff / 2 + xMed, y2 + yOff * i + yOff / 2 + yMed));
+			Lane lane = new Lane(x1 + xOff * i + xOff / 2 + xMed, y1 + yOff * i + yOff / 2 + yMed, x2 + xOff * i + xOff / 2 + xMed, y2 + yOff * i + yOff / 2 + yMed);
+			lane.connect(one, two);
+			addLane(lane);
 		}
 		for (int i = 0 ; i < leavingTwo ; i++) {
-			addLane(new Lane(x2 - xOff * i - xOff / 2 - xMed, y2 - yOff * i - yOff / 2 - yMed, x1 - xOff * i - xOff / 2 - xMed, y1 - yOff * i - yOff / 2 - yMed));
+			Lane lane = new Lane(x2 - xOff * i - xOff / 2 - xMed, y2 - yOff * i - yOff / 2 - yMed, x1 - xOff * i - xOff / 2 - xMed, y1 - yOff * i - yOff / 2 - yMed);
+			lane.connect(two, one);
+			addLane(lane);
 		}
-		upToDate = false;
 	}
 	
 	public void addTwoWayStreet(Intersection one, Intersection two) {
@@ -118,12 +211,95 @@ public class Map {
 	
 	public void addTwoWayStreet(Intersection one, Intersection two, double median) {
 		addMultiLaneFreeway(one, two, 1, 1, median);
-		upToDate = false;
 	}
 	
 	private void addLane(Lane lane) {
 		lanes.add(lane);
-		upToDate = false;
+		if (started) assignApproach(lane);
+		if (!upToDate) return;
+		Intersection start = lane.getStartIntersection();
+		Intersection finish = lane.getFinishIntersection();
+		if (start == null || finish == null) {
+			upToDate = false;
+			return;
+		}
+		graph.addLane(lane, start, finish);
+	}
+	
+	// gives the lane the next approach index at the intersection it runs into
+	private void assignApproach(Lane lane) {
+		Intersection finish = lane.getFinishIntersection();
+		if (finish != null && finish.contains(lane.getFinish())) {
+			lane.setApproach(finish.addApproach(lane));
+		} else {
+			lane.setApproach(Intersection.NO_APPROACH);
+		}
+	}
+	
+	/*
+	 * Takes a lane off the map.  New routes go around it straight away; vehicles already
+	 * on it or routed over it carry on.
+	 */
+	public boolean removeLane(Lane lane) {
+		if (!lanes.remove(lane)) return false;
+		if (upToDate) graph.removeLane(lane);
+		return true;
+	}
+	
+	/*
+	 * Incidents: a closed lane stays on the map, but routes avoid it until it's reopened.
+	 * setLaneCost changes what routing thinks it costs to use a lane, its length being
+	 * normal.  Each returns what the lane cost before, or NaN if it isn't on the map.
+	 */
+	public double closeLane(Lane lane) {
+		return setLaneCost(lane, Double.POSITIVE_INFINITY);
+	}
+	
+	public double reopenLane(Lane lane) {
+		return setLaneCost(lane, lane.getLength());
+	}
+	
+	public double setLaneCost(Lane lane, double cost) {
+		return getGraph().setLaneWeight(lane, cost);
+	}
+	
+	// removes the lanes between one and two, both ways
+	public int removeStreet(Intersection one, Intersection two) {
+		List<Lane> street = new ArrayList<Lane>();
+		for (Lane lane : lanes) {
+			Intersection start = lane.getStartIntersection();
+			Intersection finish = lane.getFinishIntersection();
+			if ((start == one && finish == two) || (start == two && finish == one)) {
+				street.add(lane);
+			}
+		}
+		for (Lane lane : street) {
+			removeLane(lane);
+		}
+		return street.size();
+	}
+	
+	// removes the intersection and every lane in or out of it, letting anyone waiting there go
+	public boolean removeIntersection(Intersection i) {
+		if (!intersections.remove(i)) return false;
+		for (int j = lanes.size() - 1 ; j >= 0 ; j--) {
+			Lane lane = lanes.get(j);
+			if (lane.getStartIntersection() == i || lane.getFinishIntersection() == i) {
+				removeLane(lane);
+			}
+		}
+		intersectionPoints.remove(i);
+		i.close();
+		if (upToDate) {
+			intersectionTree.remove(i);
+			graph.removeIntersection(i);
+			if (intersections.isEmpty()) {
+				upToDate = false;
+			} else if (onEdgeOfBounds(i.getBounds())) {
+				computeBounds();
+			}
+		}
+		return true;
 	}
 
 	public Route getRoute(Point2D start, Point2D finish) {
@@ -132,37 +308,66 @@ public class Map {
 	}
 
 	public void addIntersection(Intersection i) {
+		i.setClock(clock);
 		intersections.add(i);
-		upToDate = false;
+		intersectionPoints.insert(i);
+		if (upToDate) {
+			intersectionTree.insert(i);
+			bounds.add(i.getBounds());
+		}
+		if (started) {
+			i.start(this);
+		}
 	}
 
 	public Intersection getClosestIntersection(Point2D p) {
-		if (intersections.size() < 1) {
-			return null;
-		}
-		
-		double minDist = intersections.get(0).getLocation().distance(p);
-		Intersection minInt = intersections.get(0);
-		
-		for (Intersection i : intersections) {
-			double dist = i.getLocation().distance(p); 
-			if (dist < minDist) {
-				minDist = dist;
-				minInt = i;
-			}
-		}
-		return minInt;
+		return intersectionPoints.nearest(p);
+	}
+	
+	// closest first
+	public List<Intersection> getClosestIntersections(Point2D p, int k) {
+		return intersectionPoints.nearest(p, k);
 	}
 	
 	public Intersection getRandomIntersection() {
-		return intersections.get((int)(Math.random() * intersections.size()));
+		return intersections.get(random.nextInt(intersections.size()));
 	}
 	
 
+	// as a vehicle gets on a lane
+	void laneEntered(Lane lane) {
+		if (!lane.isBusy() && lane.getOccupancy() > 1) {
+			lane.setBusy(true);
+			busyLanes.add(lane);
+		}
+	}
+
+	// lanes down to one vehicle are dropped, the last one taking their place
+	public void sortLaneOccupants() {
+		for (int i = busyLanes.size() - 1 ; i >= 0 ; i--) {
+			Lane lane = busyLanes.get(i);
+			if (lane.getOccupancy() > 1) {
+				lane.sortOccupants();
+			} else {
+				lane.setBusy(false);
+				busyLanes.set(i, busyLanes.get(busyLanes.size() - 1));
+				busyLanes.remove(busyLanes.size() - 1);
+			}
+		}
+	}
+	
+	// numbers every intersection's incoming lanes in one pass over the lanes, then starts the intersections
 	public void start() {
+		for (Intersection i : intersections) {
+			i.clearApproaches();
+		}
+		for (Lane lane : lanes) {
+			assignApproach(lane);
+		}
 		for (Intersection i : intersections) {
 			i.start(this);
 		}
+		started = true;
 	}
 	
 	public void draw(Graphics2D g) {
@@ -2,181 +2,1032 @@ package com.heliomug.job.traffic;
 
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 
+/*
+ * The road network in compressed sparse row form.  Intersections and lanes get int ids
+ * when the graph is built; the lanes leaving vertex v are edge slots offsets[v] up to
+ * offsets[v + 1], and the same is kept backwards for searches from the target.
+ *
+ * The graph can be edited afterwards without rebuilding it.  A removed lane keeps its
+ * edge id and slots but its weight becomes infinite, so searches pass it by, and lanes
+ * added later hang off per-vertex lists next to the rows.  Lane costs can be changed
+ * the same way.  Only the cached routes an edit could change are thrown away, and next
+ * hop tables it touches are repaired.  Edits mustn't overlap route searches on other
+ * threads.
+ */
 public class MapGraph {
-	private HashMap<Intersection, Vertex> vertices;
-	
+	public static final long DEFAULT_NEXT_HOP_BUDGET = 32L << 20;
+	public static final int DEFAULT_ROUTE_CACHE_SIZE = 4096;
+	private static final int DELAY_REPAIR_LIMIT = 16;
+
+	private Intersection[] vertices;
+	private int vertexCount;
+	private HashMap<Intersection, Integer> ids;
+	private KdTree<Intersection> vertexPoints;
+	// intersections taken off the map; they keep their ids in case they come back
+	private boolean[] retired;
+
+	// lanes by edge id, in the order they were given
+	private Lane[] lanes;
+	private int[] edgeFrom;
+	private int[] edgeTo;
+	// what searches use: the lane's own cost, infinite once it's been removed or closed,
+	// plus any delay from congestion
+	private double[] edgeWeights;
+	private double[] baseWeights;
+	private double[] delays;
+	private int edgeCount;
+	// a lane's first edge id; any others follow through sameLane
+	private HashMap<Lane, Integer> edgeIds;
+	private int[] sameLane;
+
+	// rows as built, with room for vertices added since (whose rows are empty)
+	private int[] offsets;
+	private int[] targets;
+	private double[] weights;
+	private int[] laneIds;
+
+	private int[] inOffsets;
+	private int[] inSources;
+	private double[] inWeights;
+	private int[] inLaneIds;
+
+	// where each edge sits in the rows, or -1 for edges added since the build
+	private int[] outSlots;
+	private int[] inSlots;
+
+	// edges added since the build, listed by vertex: first edge id, then the next one on from each
+	private int[] outHead;
+	private int[] inHead;
+	private int[] nextOut;
+	private int[] nextIn;
+
+	// each thread that routes gets its own search state, so routes can be found in parallel
+	private ThreadLocal<Search> searches;
+
+	private volatile ContractionHierarchy hierarchy;
+	// set when the map's been edited since the hierarchy was built; A* is used until it's rebuilt
+	private volatile boolean hierarchyStale;
+	// by target vertex, least recently used first
+	private LinkedHashMap<Integer, NextHopTable> nextHopTables;
+	private long nextHopBytes;
+	private long nextHopBudget;
+	// routes are immutable, so vehicles making the same trip share one; keyed by source and target
+	private LinkedHashMap<Long, Route> routeCache;
+	private int routeCacheSize;
+	private volatile RoutingStrategy strategy;
+	// no lane is shorter than this fraction of the distance between its intersections
+	private double heuristicScale;
+
 	public MapGraph(List<Intersection> intersections, List<Lane> lanes) {
-		vertices = new HashMap<Intersection, Vertex>();
-		
+		this(intersections, lanes, RoutingStrategy.A_STAR);
+	}
+
+	public MapGraph(List<Intersection> intersections, List<Lane> lanes, RoutingStrategy strategy) {
+		this(intersections, lanes, indexOf(intersections), strategy);
+	}
+
+	/*
+	 * Lanes that don't know their own intersections are matched up through the index,
+	 * which has to hold the given intersections.
+	 */
+	public MapGraph(List<Intersection> intersections, List<Lane> lanes, SpatialIndex<Intersection> index, RoutingStrategy strategy) {
+		this.strategy = strategy;
+		heuristicScale = 1;
+
+		ids = new HashMap<Intersection, Integer>();
+		List<Intersection> byId = new ArrayList<Intersection>();
+		List<Lane> edgeLanes = new ArrayList<Lane>();
+		List<Integer> from = new ArrayList<Integer>();
+		List<Integer> to = new ArrayList<Integer>();
 		for (Lane lane : lanes) {
-			Intersection start = null;
-			Intersection finish = null;
-			for (Intersection intersection : intersections) {
-				if (lane.startsAt(intersection)) {
-					start = intersection;
-				}
-				if (lane.finishesAt(intersection)) {
-					finish = intersection;
-				}
+			Intersection start = lane.getStartIntersection();
+			Intersection finish = lane.getFinishIntersection();
+			if (start == null) {
+				start = intersectionAt(index, lane.getStart());
+			}
+			if (finish == null) {
+				finish = intersectionAt(index, lane.getFinish());
 			}
 			if (start != null && finish!= null) {
-				addOneWayStreet(start, finish, lane);
-			}
-		}
-	}
-	
-			
-	private void checkPut(Intersection intersection) {
-		if (!vertices.containsKey(intersection)) {
-			vertices.put(intersection, new Vertex(intersection));
-		}
-	}
-	
-	public void addOneWayStreet(Intersection v1, Intersection v2, Lane s) {
-		checkPut(v1);
-		checkPut(v2);
-		vertices.get(v1).addEdge(v2, s);
-	}
-	
-	public void addTwoWayStreet(Intersection v1, Intersection v2, Lane s) {
-		checkPut(v1);
-		checkPut(v2);
-		vertices.get(v1).addEdge(v2, s);
-		vertices.get(v2).addEdge(v1, s);
-	}
-
-	private void resetAll() {
-		for (Vertex v : vertices.values()) {
-			v.reset();
-		}
-	}
-	
-	private void bfs(Intersection source) {
-		resetAll();
-		PriorityQueue<Intersection, Double> q = new PriorityQueue<Intersection, Double>();
-		vertices.get(source).distance = 0;
-		q.addOrUpdate(source, 0.0);
-		//vertices.get(source).isVisited = true;
-		
-		while (!q.isEmpty()) {
-			Intersection fromIntersection = q.extractMin();
-			Vertex vFrom = vertices.get(fromIntersection);
-			
-			for (Intersection toIntersection : vFrom.getNeighbors()) {
-				Vertex vTo = vertices.get(toIntersection);
-				double dist = vFrom.distance + vFrom.laneTo(toIntersection).getLength();
-				if (dist < vTo.distance) {
-					vTo.parent = fromIntersection;
-					vTo.distance = dist;
-					q.addOrUpdate(toIntersection, dist);
+				from.add(idFor(start, byId));
+				to.add(idFor(finish, byId));
+				edgeLanes.add(lane);
+			}
+		}
+
+		int n = byId.size();
+		int m = edgeLanes.size();
+		vertexCount = n;
+		edgeCount = m;
+		vertices = byId.toArray(new Intersection[n]);
+		vertexPoints = new KdTree<Intersection>(byId);
+		retired = new boolean[n];
+		this.lanes = edgeLanes.toArray(new Lane[m]);
+		edgeFrom = new int[m];
+		edgeTo = new int[m];
+		edgeWeights = new double[m];
+		baseWeights = new double[m];
+		delays = new double[m];
+		edgeIds = new HashMap<Lane, Integer>();
+		sameLane = new int[m];
+		for (int e = m - 1 ; e >= 0 ; e--) {
+			edgeFrom[e] = from.get(e);
+			edgeTo[e] = to.get(e);
+			edgeWeights[e] = baseWeights[e] = this.lanes[e].getLength();
+			Integer other = edgeIds.put(this.lanes[e], e);
+			sameLane[e] = other == null ? -1 : other;
+			updateHeuristicScale(e);
+		}
+
+		offsets = new int[n + 1];
+		targets = new int[m];
+		weights = new double[m];
+		laneIds = new int[m];
+		outSlots = new int[m];
+		fillRows(edgeFrom, edgeTo, offsets, targets, weights, laneIds, outSlots);
+
+		inOffsets = new int[n + 1];
+		inSources = new int[m];
+		inWeights = new double[m];
+		inLaneIds = new int[m];
+		inSlots = new int[m];
+		fillRows(edgeTo, edgeFrom, inOffsets, inSources, inWeights, inLaneIds, inSlots);
+
+		outHead = new int[n];
+		inHead = new int[n];
+		Arrays.fill(outHead, -1);
+		Arrays.fill(inHead, -1);
+		nextOut = new int[m];
+		nextIn = new int[m];
+
+		searches = new ThreadLocal<Search>();
+		nextHopTables = new LinkedHashMap<Integer, NextHopTable>(16, .75f, true);
+		nextHopBudget = DEFAULT_NEXT_HOP_BUDGET;
+		routeCacheSize = DEFAULT_ROUTE_CACHE_SIZE;
+		routeCache = new LinkedHashMap<Long, Route>(16, .75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(java.util.Map.Entry<Long, Route> eldest) {
+				return size() > routeCacheSize;
+			}
+		};
+	}
+
+	private static SpatialIndex<Intersection> indexOf(List<Intersection> intersections) {
+		SpatialIndex<Intersection> index = new QuadTree<Intersection>();
+		index.refill(intersections);
+		return index;
+	}
+
+	private static Intersection intersectionAt(SpatialIndex<Intersection> index, Point2D p) {
+		for (Intersection intersection : index.getOverlappers(p)) {
+			if (intersection.contains(p)) {
+				return intersection;
+			}
+		}
+		return null;
+	}
+
+	private int idFor(Intersection intersection, List<Intersection> byId) {
+		Integer id = ids.get(intersection);
+		if (id == null) {
+			id = byId.size();
+			ids.put(intersection, id);
+			byId.add(intersection);
+		}
+		return id;
+	}
+
+	// counting sort of the edges by row, keeping edge id order within a row
+	private void fillRows(int[] rows, int[] cols, int[] rowOffsets, int[] rowCols, double[] rowWeights, int[] rowLanes, int[] slotOf) {
+		for (int e = 0 ; e < rows.length ; e++) {
+			rowOffsets[rows[e] + 1]++;
+		}
+		for (int v = 0 ; v + 1 < rowOffsets.length ; v++) {
+			rowOffsets[v + 1] += rowOffsets[v];
+		}
+		int[] fill = Arrays.copyOf(rowOffsets, rowOffsets.length - 1);
+		for (int e = 0 ; e < rows.length ; e++) {
+			int slot = fill[rows[e]]++;
+			rowCols[slot] = cols[e];
+			rowWeights[slot] = edgeWeights[e];
+			rowLanes[slot] = e;
+			slotOf[e] = slot;
+		}
+	}
+
+	private void updateHeuristicScale(int e) {
+		double centres = vertices[edgeFrom[e]].getLocation().distance(vertices[edgeTo[e]].getLocation());
+		if (centres > 0) {
+			heuristicScale = Math.min(heuristicScale, baseWeights[e] / centres);
+		}
+	}
+
+	public RoutingStrategy getRoutingStrategy() { return strategy; }
+	public void setRoutingStrategy(RoutingStrategy strategy) {
+		this.strategy = strategy;
+		synchronized (routeCache) {
+			routeCache.clear();
+		}
+	}
+
+	public void setRouteCacheSize(int routes) {
+		synchronized (routeCache) {
+			routeCacheSize = routes;
+			routeCache.clear();
+		}
+	}
+
+	// vertices taken off the queue by this thread's last search, for comparing strategies
+	public int getLastSettledCount() { return search().lastSettled; }
+
+	public int getVertexCount() { return vertexCount; }
+	public Intersection getIntersection(int id) { return vertices[id]; }
+
+	public int idOf(Intersection i) {
+		Integer id = ids.get(i);
+		return id == null ? -1 : id;
+	}
+
+	// every lane added, in order, removed ones included; the same lane can appear twice if added both ways
+	public int getEdgeCount() { return edgeCount; }
+	public int getEdgeFrom(int edge) { return edgeFrom[edge]; }
+	public int getEdgeTo(int edge) { return edgeTo[edge]; }
+	public Lane getEdgeLane(int edge) { return lanes[edge]; }
+	public double getEdgeWeight(int edge) { return edgeWeights[edge]; }
+	public boolean isEdgeOpen(int edge) { return edgeWeights[edge] < Double.POSITIVE_INFINITY; }
+
+	public int getOutDegree(int v) {
+		int degree = 0;
+		for (int slot = offsets[v] ; slot < offsets[v + 1] ; slot++) {
+			if (isEdgeOpen(laneIds[slot])) degree++;
+		}
+		for (int e = outHead[v] ; e >= 0 ; e = nextOut[e]) {
+			if (isEdgeOpen(e)) degree++;
+		}
+		return degree;
+	}
+
+	public int getInDegree(int v) {
+		int degree = 0;
+		for (int slot = inOffsets[v] ; slot < inOffsets[v + 1] ; slot++) {
+			if (isEdgeOpen(inLaneIds[slot])) degree++;
+		}
+		for (int e = inHead[v] ; e >= 0 ; e = nextIn[e]) {
+			if (isEdgeOpen(e)) degree++;
+		}
+		return degree;
+	}
+
+	/*
+	 * Adds a lane from start to finish, or reopens it if it was removed.  Intersections
+	 * the graph hasn't seen yet are added with it.  Returns the lane's edge id.
+	 */
+	public synchronized int addLane(Lane lane, Intersection start, Intersection finish) {
+		int from = vertexFor(start);
+		int to = vertexFor(finish);
+		Integer first = edgeIds.get(lane);
+		for (int e = first == null ? -1 : first ; e >= 0 ; e = sameLane[e]) {
+			if (edgeFrom[e] == from && edgeTo[e] == to) {
+				if (!isEdgeOpen(e)) {
+					setBaseWeight(e, lane.getLength());
 				}
+				return e;
 			}
 		}
+
+		int e = edgeCount;
+		ensureEdgeCapacity(e + 1);
+		edgeCount++;
+		lanes[e] = lane;
+		edgeFrom[e] = from;
+		edgeTo[e] = to;
+		edgeWeights[e] = baseWeights[e] = lane.getLength();
+		delays[e] = 0;
+		sameLane[e] = first == null ? -1 : first;
+		edgeIds.put(lane, e);
+		outSlots[e] = -1;
+		inSlots[e] = -1;
+		nextOut[e] = outHead[from];
+		outHead[from] = e;
+		nextIn[e] = inHead[to];
+		inHead[to] = e;
+		updateHeuristicScale(e);
+		lowered(e);
+		return e;
 	}
 
-	public Intersection closestIntersectionTo(Point2D p) {
-		double minDist = Double.POSITIVE_INFINITY;
-		Intersection minInt = null;
-		
-		for (Intersection i : vertices.keySet()) {
-			double dist = i.getLocation().distance(p); 
-			if (dist < minDist) {
-				minDist = dist;
-				minInt = i;
+	/*
+	 * Changes what it costs to travel a lane, e.g. for an incident: infinite closes it,
+	 * and its length is the usual cost.  Congestion delay still goes on top.  Returns
+	 * what it cost before, or NaN if the graph doesn't have the lane.
+	 */
+	public synchronized double setLaneWeight(Lane lane, double weight) {
+		Integer first = edgeIds.get(lane);
+		if (first == null) return Double.NaN;
+		double old = baseWeights[first];
+		for (int e = first ; e >= 0 ; e = sameLane[e]) {
+			setBaseWeight(e, weight);
+		}
+		return old;
+	}
+
+	// the lane's own cost, not counting congestion
+	public double getLaneWeight(Lane lane) {
+		Integer first = edgeIds.get(lane);
+		return first == null ? Double.NaN : baseWeights[first];
+	}
+
+	// what routing takes the lane to cost now, congestion included
+	public double getLaneCost(Lane lane) {
+		Integer first = edgeIds.get(lane);
+		return first == null ? Double.POSITIVE_INFINITY : edgeWeights[first];
+	}
+
+	public double getEdgeDelay(int edge) { return delays[edge]; }
+
+	/*
+	 * Replaces the congestion delays, by edge id, in one go.  Edges whose weight moves
+	 * by less than tolerance times the lane's own cost are left alone, so cached routes
+	 * and tables survive small wobbles.  When more than a few edges change it's cheaper
+	 * to drop the caches than to work out what each change touches.  Returns how many
+	 * edges changed.
+	 */
+	public synchronized int setDelays(double[] newDelays, double tolerance) {
+		int[] changed = new int[edgeCount];
+		int count = 0;
+		for (int e = 0 ; e < edgeCount && e < newDelays.length ; e++) {
+			double base = baseWeights[e];
+			if (base == Double.POSITIVE_INFINITY) {
+				// closed; it'll be used if the lane reopens
+				delays[e] = newDelays[e];
+			} else if (Math.abs(base + newDelays[e] - edgeWeights[e]) > tolerance * base) {
+				changed[count++] = e;
+			}
+		}
+		if (count <= DELAY_REPAIR_LIMIT) {
+			for (int i = 0 ; i < count ; i++) {
+				int e = changed[i];
+				delays[e] = newDelays[e];
+				applyWeight(e, baseWeights[e] + delays[e]);
 			}
+			return count;
+		}
+		for (int i = 0 ; i < count ; i++) {
+			int e = changed[i];
+			delays[e] = newDelays[e];
+			setWeight(e, baseWeights[e] + delays[e]);
+		}
+		hierarchyStale = true;
+		synchronized (routeCache) {
+			routeCache.clear();
+		}
+		synchronized (nextHopTables) {
+			nextHopTables.clear();
+			nextHopBytes = 0;
+		}
+		return count;
+	}
+
+	// closes every edge the lane was added as; returns false if none were open
+	public synchronized boolean removeLane(Lane lane) {
+		Integer first = edgeIds.get(lane);
+		boolean removed = false;
+		for (int e = first == null ? -1 : first ; e >= 0 ; e = sameLane[e]) {
+			removed |= close(e);
+		}
+		return removed;
+	}
+
+	// closes every lane in or out of the intersection, and stops routes starting or ending there
+	public synchronized boolean removeIntersection(Intersection intersection) {
+		Integer id = ids.get(intersection);
+		if (id == null || retired[id]) return false;
+		int v = id;
+		for (int slot = offsets[v] ; slot < offsets[v + 1] ; slot++) {
+			close(laneIds[slot]);
+		}
+		for (int e = outHead[v] ; e >= 0 ; e = nextOut[e]) {
+			close(e);
+		}
+		for (int slot = inOffsets[v] ; slot < inOffsets[v + 1] ; slot++) {
+			close(inLaneIds[slot]);
+		}
+		for (int e = inHead[v] ; e >= 0 ; e = nextIn[e]) {
+			close(e);
 		}
-		return minInt;
+		retired[v] = true;
+		vertexPoints.remove(intersection);
+		return true;
 	}
-	
-	
+
+	private int vertexFor(Intersection intersection) {
+		Integer id = ids.get(intersection);
+		if (id != null) {
+			if (retired[id]) {
+				retired[id] = false;
+				vertexPoints.insert(intersection);
+			}
+			return id;
+		}
+		int v = vertexCount;
+		ensureVertexCapacity(v + 1);
+		vertexCount++;
+		vertices[v] = intersection;
+		ids.put(intersection, v);
+		vertexPoints.insert(intersection);
+		return v;
+	}
+
+	private boolean close(int e) {
+		if (!isEdgeOpen(e)) return false;
+		setBaseWeight(e, Double.POSITIVE_INFINITY);
+		return true;
+	}
+
+	private void setBaseWeight(int e, double base) {
+		double before = baseWeights[e];
+		baseWeights[e] = base;
+		if (base < before) updateHeuristicScale(e);
+		applyWeight(e, base + delays[e]);
+	}
+
+	private void applyWeight(int e, double weight) {
+		double before = edgeWeights[e];
+		if (weight == before) return;
+		setWeight(e, weight);
+		if (weight > before) {
+			raised(e);
+		} else {
+			lowered(e);
+		}
+	}
+
+	private void setWeight(int e, double weight) {
+		edgeWeights[e] = weight;
+		if (outSlots[e] >= 0) weights[outSlots[e]] = weight;
+		if (inSlots[e] >= 0) inWeights[inSlots[e]] = weight;
+	}
+
+	/*
+	 * Only routes over an edge that got dearer can have changed, and only the trees that
+	 * lead through it; those are repaired rather than searched again.
+	 */
+	private void raised(int e) {
+		hierarchyStale = true;
+		synchronized (routeCache) {
+			routeCache.values().removeIf(route -> route.usesEdge(e));
+		}
+		int from = edgeFrom[e];
+		synchronized (nextHopTables) {
+			for (java.util.Map.Entry<Integer, NextHopTable> entry : nextHopTables.entrySet()) {
+				NextHopTable table = entry.getValue();
+				if (table.getNextEdge(from) == e) {
+					replaceNextHopTable(entry, search().repairRaised(table, e));
+				}
+			}
+		}
+	}
+
+	/*
+	 * A new or cheaper edge u -> v only matters to a route from s to t if going
+	 * s ~> u -> v ~> t could beat it, which the straight-line bounds on either side rule
+	 * out for most routes.  A tree to t only changes if it gets to u quicker through v.
+	 */
+	private void lowered(int e) {
+		hierarchyStale = true;
+		int u = edgeFrom[e];
+		int v = edgeTo[e];
+		double w = edgeWeights[e];
+		synchronized (routeCache) {
+			routeCache.entrySet().removeIf(entry -> {
+				long key = entry.getKey();
+				int s = (int)(key >>> 32);
+				int t = (int)key;
+				return heuristic(s, u) + w + heuristic(v, t) < entry.getValue().getCost();
+			});
+		}
+		synchronized (nextHopTables) {
+			for (java.util.Map.Entry<Integer, NextHopTable> entry : nextHopTables.entrySet()) {
+				NextHopTable table = entry.getValue();
+				if (table.getDistance(v) + w < table.getDistance(u)) {
+					replaceNextHopTable(entry, search().repairLowered(table, e));
+				}
+			}
+		}
+	}
+
+	// vehicles already following the old table keep it; it's never changed in place
+	private void replaceNextHopTable(java.util.Map.Entry<Integer, NextHopTable> entry, NextHopTable table) {
+		nextHopBytes += table.sizeInBytes() - entry.getValue().sizeInBytes();
+		entry.setValue(table);
+	}
+
+	private void ensureVertexCapacity(int n) {
+		if (n <= vertices.length) return;
+		int capacity = Math.max(n, vertices.length * 2);
+		int old = vertices.length;
+		vertices = Arrays.copyOf(vertices, capacity);
+		retired = Arrays.copyOf(retired, capacity);
+		// new vertices have empty rows
+		offsets = Arrays.copyOf(offsets, capacity + 1);
+		Arrays.fill(offsets, old + 1, capacity + 1, offsets[old]);
+		inOffsets = Arrays.copyOf(inOffsets, capacity + 1);
+		Arrays.fill(inOffsets, old + 1, capacity + 1, inOffsets[old]);
+		outHead = Arrays.copyOf(outHead, capacity);
+		Arrays.fill(outHead, old, capacity, -1);
+		inHead = Arrays.copyOf(inHead, capacity);
+		Arrays.fill(inHead, old, capacity, -1);
+	}
+
+	private void ensureEdgeCapacity(int m) {
+		if (m <= lanes.length) return;
+		int capacity = Math.max(m, lanes.length * 2);
+		lanes = Arrays.copyOf(lanes, capacity);
+		edgeFrom = Arrays.copyOf(edgeFrom, capacity);
+		edgeTo = Arrays.copyOf(edgeTo, capacity);
+		edgeWeights = Arrays.copyOf(edgeWeights, capacity);
+		baseWeights = Arrays.copyOf(baseWeights, capacity);
+		delays = Arrays.copyOf(delays, capacity);
+		sameLane = Arrays.copyOf(sameLane, capacity);
+		outSlots = Arrays.copyOf(outSlots, capacity);
+		inSlots = Arrays.copyOf(inSlots, capacity);
+		nextOut = Arrays.copyOf(nextOut, capacity);
+		nextIn = Arrays.copyOf(nextIn, capacity);
+	}
+
+	public ContractionHierarchy getContractionHierarchy() { return hierarchy; }
+
+	public void setContractionHierarchy(ContractionHierarchy ch) {
+		if (ch != null && !ch.matches(this)) {
+			throw new IllegalArgumentException("contraction hierarchy was built for a different map");
+		}
+		hierarchy = ch;
+		hierarchyStale = false;
+	}
+
+	public synchronized ContractionHierarchy buildContractionHierarchy() {
+		hierarchy = new ContractionHierarchy(this);
+		hierarchyStale = false;
+		return hierarchy;
+	}
+
+	private synchronized ContractionHierarchy getOrBuildContractionHierarchy() {
+		if (hierarchy == null) buildContractionHierarchy();
+		return hierarchy;
+	}
+
+	public boolean isContractionHierarchyStale() { return hierarchyStale; }
+
+	public long getNextHopBudget() { return nextHopBudget; }
+
+	// bytes of next hop tables to keep before dropping the least recently used
+	public void setNextHopBudget(long bytes) {
+		synchronized (nextHopTables) {
+			nextHopBudget = bytes;
+			evictNextHopTables();
+		}
+	}
+
+	public int getNextHopTableCount() {
+		synchronized (nextHopTables) {
+			return nextHopTables.size();
+		}
+	}
+
+	public NextHopTable getNextHopTable(int target) {
+		synchronized (nextHopTables) {
+			NextHopTable table = nextHopTables.get(target);
+			if (table != null) return table;
+		}
+		// searched outside the lock; if two threads race, one table just replaces the other
+		NextHopTable table = search().reverseTree(target);
+		synchronized (nextHopTables) {
+			NextHopTable old = nextHopTables.put(target, table);
+			if (old != null) nextHopBytes -= old.sizeInBytes();
+			nextHopBytes += table.sizeInBytes();
+			evictNextHopTables();
+		}
+		return table;
+	}
+
+	// always keeps the newest table, even if it's over budget on its own
+	private void evictNextHopTables() {
+		Iterator<NextHopTable> it = nextHopTables.values().iterator();
+		while (nextHopBytes > nextHopBudget && nextHopTables.size() > 1) {
+			nextHopBytes -= it.next().sizeInBytes();
+			it.remove();
+		}
+	}
+
+	public int getCachedRouteCount() {
+		synchronized (routeCache) {
+			return routeCache.size();
+		}
+	}
+
+	// never more than the real distance left, so A* still finds shortest routes
+	private double heuristic(int v, int target) {
+		return heuristicScale * vertices[v].getLocation().distance(vertices[target].getLocation());
+	}
+
+	// this thread's search state, remade if the graph has grown past it
+	private Search search() {
+		Search search = searches.get();
+		if (search == null || search.distance.length < vertexCount) {
+			search = new Search(vertices.length);
+			searches.set(search);
+		}
+		return search;
+	}
+
+	// only reads the tree; edits rebuild it, and those wait for routing to be quiet
+	public Intersection closestIntersectionTo(Point2D p) {
+		return vertexPoints.nearest(p);
+	}
+
+
 	public Route getRoute(Point2D start, Point2D finish) {
 		Intersection source = closestIntersectionTo(start);
 		Intersection target = closestIntersectionTo(finish);
 
-		Route route = new Route();
-		
 		if (source == target) {
-			route.push(source.getLocation());
-		} else {
+			return new Route(source.getLocation());
+		}
 
-			bfs(source);
-	
-			if (vertices.get(target).parent == null) {
+		int vSource = ids.get(source);
+		int vTarget = ids.get(target);
+		RoutingStrategy strategy = this.strategy;
+		if (strategy == RoutingStrategy.NEXT_HOP) {
+			NextHopTable table = getNextHopTable(vTarget);
+			if (!table.canReach(vSource)) {
 				System.out.println("no route from " + source + " to " + target + "!");
 				return null;
 			}
-			Vertex v = vertices.get(target);
-			
-			while (v.intersection != source) {
-				//route.push(v.intersection.getLocation());
-				Lane lane = vertices.get(v.parent).laneTo(v.intersection);
-				route.push(lane.getFinish());
-				route.push(lane.getMid());
-				route.push(lane.getStart());
-				v = vertices.get(v.parent);
-			}
-			route.push(source.getLocation());
+			return new NextHopRoute(this, table, vSource);
+		}
+
+		Long key = ((long)vSource << 32) | vTarget;
+		synchronized (routeCache) {
+			Route cached = routeCache.get(key);
+			if (cached != null) return cached;
+		}
+		int[] edges = findEdges(strategy, vSource, vTarget);
+		if (edges == null) {
+			System.out.println("no route from " + source + " to " + target + "!");
+			return null;
+		}
+		double cost = 0;
+		for (int e : edges) {
+			cost += edgeWeights[e];
+		}
+		Route route = new Route(lanes, edges, source.getLocation(), cost);
+		synchronized (routeCache) {
+			routeCache.put(key, route);
 		}
-	
 		return route;
 	}
-	
+
+	// edge ids of a shortest route, first to last, or null if there isn't one
+	private int[] findEdges(RoutingStrategy strategy, int vSource, int vTarget) {
+		Search search = search();
+		if (strategy == RoutingStrategy.CONTRACTION_HIERARCHY && !hierarchyStale) {
+			ContractionHierarchy ch = getOrBuildContractionHierarchy();
+			int[] edges = ch.query(vSource, vTarget);
+			search.lastSettled = ch.getLastSettledCount();
+			return edges;
+		}
+
+		int meet = vTarget;
+		if (strategy == RoutingStrategy.BIDIRECTIONAL) {
+			meet = search.bidirectional(vSource, vTarget);
+		} else if (strategy == RoutingStrategy.DIJKSTRA) {
+			search.bfs(vSource);
+		} else {
+			search.aStar(vSource, vTarget);
+		}
+		if (meet < 0 || search.distance[meet] == Double.POSITIVE_INFINITY) {
+			return null;
+		}
+
+		int[] nextEdge = search.nextEdge;
+		int[] parentEdge = search.parentEdge;
+		int before = 0;
+		for (int v = meet ; v != vSource ; v = edgeFrom[parentEdge[v]]) {
+			before++;
+		}
+		int after = 0;
+		for (int v = meet ; v != vTarget ; v = edgeTo[nextEdge[v]]) {
+			after++;
+		}
+		int[] edges = new int[before + after];
+		int i = before;
+		for (int v = meet ; v != vSource ; v = edgeFrom[parentEdge[v]]) {
+			edges[--i] = parentEdge[v];
+		}
+		i = before;
+		for (int v = meet ; v != vTarget ; v = edgeTo[nextEdge[v]]) {
+			edges[i++] = nextEdge[v];
+		}
+		return edges;
+	}
+
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		for (Vertex v : vertices.values()) {
-			sb.append(v.intersection.toString() + " --> ");
-			for (Intersection neigh : v.getNeighbors()) {
-				sb.append(neigh.toString());
+		for (int v = 0 ; v < vertexCount ; v++) {
+			sb.append(vertices[v].toString() + " --> ");
+			for (int slot = offsets[v] ; slot < offsets[v + 1] ; slot++) {
+				if (weights[slot] < Double.POSITIVE_INFINITY) sb.append(vertices[targets[slot]].toString());
+			}
+			for (int e = outHead[v] ; e >= 0 ; e = nextOut[e]) {
+				if (isEdgeOpen(e)) sb.append(vertices[edgeTo[e]].toString());
 			}
 			sb.append("\n");
 		}
 		return sb.toString();
 	}
-	
-	private class Vertex {
-		public HashMap<Intersection, Lane> edges;
-		
-		public Intersection intersection;
-		
-		public double distance;
-		//public int start;
-		//public int finish;
-		//public boolean isVisited;
-		public Intersection parent;
 
-		public Vertex(Intersection intersection) {
-			edges = new HashMap<Intersection, Lane>();
-			this.intersection = intersection;
-			reset();
+	private class Search {
+		// by vertex id; parentEdge leads back towards the source, nextEdge on to the target
+		final double[] distance;
+		final double[] backDistance;
+		final int[] parentEdge;
+		final int[] nextEdge;
+		final IndexedMinHeap heap;
+		final IndexedMinHeap backHeap;
+		// vertices given a distance either way since the last reset, which is all it has to undo
+		final int[] touched;
+		int touchedCount;
+		// a whole table's been loaded in, or nothing's been cleared yet, so the next reset does everything
+		boolean allTouched;
+		int lastSettled;
+		// for bidirectional: the shortest connection found so far and where the two sides meet
+		double best;
+		int meet;
+
+		Search(int n) {
+			distance = new double[n];
+			backDistance = new double[n];
+			parentEdge = new int[n];
+			nextEdge = new int[n];
+			heap = new IndexedMinHeap(n);
+			backHeap = new IndexedMinHeap(n);
+			touched = new int[n];
+			allTouched = true;
 		}
 
-		public void reset() {
-			this.distance = Double.POSITIVE_INFINITY;
-			//this.start = 0;
-			//this.finish = 0;
-			//this.isVisited = false;
-			this.parent = null;
+		private void resetAll() {
+			if (allTouched) {
+				Arrays.fill(distance, Double.POSITIVE_INFINITY);
+				Arrays.fill(backDistance, Double.POSITIVE_INFINITY);
+				Arrays.fill(parentEdge, -1);
+				Arrays.fill(nextEdge, -1);
+				allTouched = false;
+			} else {
+				for (int i = 0 ; i < touchedCount ; i++) {
+					int v = touched[i];
+					distance[v] = Double.POSITIVE_INFINITY;
+					backDistance[v] = Double.POSITIVE_INFINITY;
+					parentEdge[v] = -1;
+					nextEdge[v] = -1;
+				}
+			}
+			touchedCount = 0;
+			heap.clear();
+			backHeap.clear();
 		}
 
-		public List<Intersection> getNeighbors() {
-			List<Intersection> toRet = new ArrayList<Intersection>();
-			for (Intersection i : edges.keySet()) {
-				toRet.add(i);
+		// before v first gets a distance; distances only come down, so each vertex is listed once
+		private void touch(int v) {
+			if (distance[v] == Double.POSITIVE_INFINITY && backDistance[v] == Double.POSITIVE_INFINITY) {
+				touched[touchedCount++] = v;
 			}
-			return toRet;
 		}
-		
-		public Lane laneTo(Intersection other) {
-			return edges.get(other);
+
+		// target < 0 for plain Dijkstra
+		private void relax(int from, int to, double weight, int edge, int target) {
+			double dist = distance[from] + weight;
+			if (dist < distance[to]) {
+				touch(to);
+				parentEdge[to] = edge;
+				distance[to] = dist;
+				heap.addOrUpdate(to, target < 0 ? dist : dist + heuristic(to, target));
+			}
 		}
-		
-		public void addEdge(Intersection other, Lane lane) {
-			edges.put(other, lane);
+
+		private void relaxBack(int to, int from, double weight, int edge) {
+			double dist = backDistance[to] + weight;
+			if (dist < backDistance[from]) {
+				touch(from);
+				nextEdge[from] = edge;
+				backDistance[from] = dist;
+				backHeap.addOrUpdate(from, dist);
+			}
+		}
+
+		// every edge out of from, built or added since
+		private void expand(int from, int target) {
+			for (int slot = offsets[from] ; slot < offsets[from + 1] ; slot++) {
+				relax(from, targets[slot], weights[slot], laneIds[slot], target);
+			}
+			for (int e = outHead[from] ; e >= 0 ; e = nextOut[e]) {
+				relax(from, edgeTo[e], edgeWeights[e], e, target);
+			}
+		}
+
+		private void expandBack(int to) {
+			for (int slot = inOffsets[to] ; slot < inOffsets[to + 1] ; slot++) {
+				relaxBack(to, inSources[slot], inWeights[slot], inLaneIds[slot]);
+			}
+			for (int e = inHead[to] ; e >= 0 ; e = nextIn[e]) {
+				relaxBack(to, edgeFrom[e], edgeWeights[e], e);
+			}
+		}
+
+		private void bfs(int source) {
+			resetAll();
+			lastSettled = 0;
+			touch(source);
+			distance[source] = 0;
+			heap.addOrUpdate(source, 0.0);
+
+			while (!heap.isEmpty()) {
+				int from = heap.extractMin();
+				lastSettled++;
+				expand(from, -1);
+			}
+		}
+
+		private void aStar(int source, int target) {
+			resetAll();
+			lastSettled = 0;
+			touch(source);
+			distance[source] = 0;
+			heap.addOrUpdate(source, heuristic(source, target));
+
+			while (!heap.isEmpty()) {
+				int from = heap.extractMin();
+				lastSettled++;
+				if (from == target) break;
+				expand(from, target);
+			}
+		}
+
+		// Dijkstra backwards from target over every vertex
+		NextHopTable reverseTree(int target) {
+			resetAll();
+			touch(target);
+			backDistance[target] = 0;
+			backHeap.addOrUpdate(target, 0);
+			settleBack();
+			return toTable(target);
+		}
+
+		private void load(NextHopTable table) {
+			resetAll();
+			allTouched = true;
+			table.copyInto(nextEdge, backDistance);
+		}
+
+		private NextHopTable toTable(int target) {
+			return new NextHopTable(target, Arrays.copyOf(nextEdge, vertexCount), Arrays.copyOf(backDistance, vertexCount));
+		}
+
+		/*
+		 * Edge e, which the table's tree goes through, has got dearer.  The vertices whose
+		 * routes went through it are found by walking the tree back from its tail; they
+		 * each take the best edge out to a vertex that wasn't affected, and then Dijkstra
+		 * settles the rest among themselves.  Nothing else in the tree can change.
+		 */
+		NextHopTable repairRaised(NextHopTable table, int e) {
+			load(table);
+			int[] orphans = new int[vertexCount];
+			int count = 0;
+			orphans[count++] = edgeFrom[e];
+			// parentEdge marks the orphans here
+			parentEdge[edgeFrom[e]] = -2;
+			for (int i = 0 ; i < count ; i++) {
+				int to = orphans[i];
+				for (int slot = inOffsets[to] ; slot < inOffsets[to + 1] ; slot++) {
+					int from = inSources[slot];
+					if (nextEdge[from] == inLaneIds[slot]) {
+						parentEdge[from] = -2;
+						orphans[count++] = from;
+					}
+				}
+				for (int edge = inHead[to] ; edge >= 0 ; edge = nextIn[edge]) {
+					int from = edgeFrom[edge];
+					if (nextEdge[from] == edge) {
+						parentEdge[from] = -2;
+						orphans[count++] = from;
+					}
+				}
+			}
+			for (int i = 0 ; i < count ; i++) {
+				backDistance[orphans[i]] = Double.POSITIVE_INFINITY;
+				nextEdge[orphans[i]] = -1;
+			}
+			for (int i = 0 ; i < count ; i++) {
+				int from = orphans[i];
+				for (int slot = offsets[from] ; slot < offsets[from + 1] ; slot++) {
+					if (parentEdge[targets[slot]] != -2) {
+						settleFrom(from, backDistance[targets[slot]] + weights[slot], laneIds[slot]);
+					}
+				}
+				for (int edge = outHead[from] ; edge >= 0 ; edge = nextOut[edge]) {
+					if (parentEdge[edgeTo[edge]] != -2) {
+						settleFrom(from, backDistance[edgeTo[edge]] + edgeWeights[edge], edge);
+					}
+				}
+				if (backDistance[from] < Double.POSITIVE_INFINITY) {
+					backHeap.addOrUpdate(from, backDistance[from]);
+				}
+			}
+			settleBack();
+			return toTable(table.getTarget());
+		}
+
+		// edge e has got cheaper, or is new, and the table's tree can get to its tail quicker through it
+		NextHopTable repairLowered(NextHopTable table, int e) {
+			load(table);
+			settleFrom(edgeFrom[e], backDistance[edgeTo[e]] + edgeWeights[e], e);
+			backHeap.addOrUpdate(edgeFrom[e], backDistance[edgeFrom[e]]);
+			settleBack();
+			return toTable(table.getTarget());
 		}
-		
-	}
 
+		private void settleFrom(int from, double dist, int edge) {
+			if (dist < backDistance[from]) {
+				backDistance[from] = dist;
+				nextEdge[from] = edge;
+			}
+		}
+
+		private void settleBack() {
+			lastSettled = 0;
+			while (!backHeap.isEmpty()) {
+				int to = backHeap.extractMin();
+				lastSettled++;
+				expandBack(to);
+			}
+		}
+
+		/*
+		 * Grows shortest-path trees from both ends, always expanding the side whose next
+		 * vertex is closer.  Once the two next distances add up to at least the best
+		 * connection found, nothing shorter can turn up.  Returns the vertex where the best
+		 * route crosses over, or -1 if there's no route.
+		 */
+		private int bidirectional(int source, int target) {
+			resetAll();
+			lastSettled = 0;
+			touch(source);
+			distance[source] = 0;
+			touch(target);
+			backDistance[target] = 0;
+			heap.addOrUpdate(source, 0);
+			backHeap.addOrUpdate(target, 0);
+			best = Double.POSITIVE_INFINITY;
+			meet = -1;
+
+			while (!heap.isEmpty() && !backHeap.isEmpty() && heap.peekKey() + backHeap.peekKey() < best) {
+				lastSettled++;
+				if (heap.peekKey() <= backHeap.peekKey()) {
+					int from = heap.extractMin();
+					for (int slot = offsets[from] ; slot < offsets[from + 1] ; slot++) {
+						relax(from, targets[slot], weights[slot], laneIds[slot], -1);
+						connect(targets[slot]);
+					}
+					for (int e = outHead[from] ; e >= 0 ; e = nextOut[e]) {
+						relax(from, edgeTo[e], edgeWeights[e], e, -1);
+						connect(edgeTo[e]);
+					}
+				} else {
+					int to = backHeap.extractMin();
+					for (int slot = inOffsets[to] ; slot < inOffsets[to + 1] ; slot++) {
+						relaxBack(to, inSources[slot], inWeights[slot], inLaneIds[slot]);
+						connect(inSources[slot]);
+					}
+					for (int e = inHead[to] ; e >= 0 ; e = nextIn[e]) {
+						relaxBack(to, edgeFrom[e], edgeWeights[e], e);
+						connect(edgeFrom[e]);
+					}
+				}
+			}
+			return meet;
+		}
+
+		private void connect(int v) {
+			if (distance[v] + backDistance[v] < best) {
+				best = distance[v] + backDistance[v];
+				meet = v;
+			}
+		}
+	}
 }
@@ -0,0 +1,96 @@
+package com.heliomug.job.traffic;
+
+import java.awt.geom.Point2D;
+
+/**
+ * A route read straight out of a shared NextHopTable instead of a list of its own
+ * waypoints.  The cursor is 3 * vertex + k, for the start, middle (k = 1) or finish of
+ * the lane leaving that vertex; the source intersection comes first, as in any Route.
+ */
+public class NextHopRoute extends Route {
+	private static final int AT_SOURCE = -2;
+	private static final int DONE = -1;
+
+	private final MapGraph graph;
+	private final NextHopTable table;
+	private final int source;
+	private final Point2D sourcePoint;
+
+	NextHopRoute(MapGraph graph, NextHopTable table, int source) {
+		super(graph.getIntersection(source).getLocation());
+		this.graph = graph;
+		this.table = table;
+		this.source = source;
+		this.sourcePoint = graph.getIntersection(source).getLocation();
+	}
+
+	@Override
+	public double getCost() {
+		return table.getDistance(source);
+	}
+
+	@Override
+	public int getLaneCount() {
+		return (size() - 1) / 3;
+	}
+
+	@Override
+	public int size() {
+		int count = 0;
+		for (int c = first() ; !isDone(c) ; c = next(c)) {
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public int first() {
+		return AT_SOURCE;
+	}
+
+	@Override
+	public int next(int cursor) {
+		int vertex = cursor == AT_SOURCE ? source : cursor / 3;
+		if (cursor == AT_SOURCE || cursor % 3 == 2) {
+			if (cursor != AT_SOURCE) {
+				vertex = graph.getEdgeTo(table.getNextEdge(vertex));
+			}
+			return vertex == table.getTarget() ? DONE : vertex * 3;
+		}
+		return cursor + 1;
+	}
+
+	@Override
+	public boolean isDone(int cursor) {
+		return cursor == DONE;
+	}
+
+	@Override
+	public Point2D get(int cursor) {
+		if (cursor == AT_SOURCE) return sourcePoint;
+		Lane lane = getLane(cursor);
+		switch (cursor % 3) {
+			case 0: return lane.getStart();
+			case 1: return lane.getMid();
+			default: return lane.getFinish();
+		}
+	}
+
+	@Override
+	public int getApproach(int cursor, Intersection i) {
+		if (cursor == AT_SOURCE) {
+			return sourcePoint.equals(i.getLocation()) ? Intersection.CENTRE_APPROACH : Intersection.NO_APPROACH;
+		}
+		Lane lane = getLane(cursor);
+		if (cursor % 3 != 2 || lane.getFinishIntersection() != i) {
+			return Intersection.NO_APPROACH;
+		}
+		return lane.getApproach();
+	}
+
+	@Override
+	public Lane getLane(int cursor) {
+		if (cursor == AT_SOURCE) return null;
+		return graph.getEdgeLane(table.getNextEdge(cursor / 3));
+	}
+}
@@ -0,0 +1,39 @@
+package com.heliomug.job.traffic;
+
+import java.util.Arrays;
+
+/**
+ * A reverse shortest-path tree for one destination: for every vertex of a MapGraph, the
+ * edge to take next on a shortest route there.  Every vehicle headed to the same place
+ * can share one.
+ */
+public class NextHopTable {
+	private final int target;
+	// edge ids; -1 at the target and wherever it can't be reached from
+	private final int[] nextEdge;
+	private final double[] distance;
+
+	NextHopTable(int target, int[] nextEdge, double[] distance) {
+		this.target = target;
+		this.nextEdge = nextEdge;
+		this.distance = distance;
+	}
+
+	public int getTarget() { return target; }
+	// vertices added to the graph after the table was made can't reach the target through it
+	public int getNextEdge(int vertex) { return vertex < nextEdge.length ? nextEdge[vertex] : -1; }
+	public double getDistance(int vertex) { return vertex < distance.length ? distance[vertex] : Double.POSITIVE_INFINITY; }
+	public boolean canReach(int vertex) { return vertex == target || getNextEdge(vertex) >= 0; }
+
+	// fills arrays that may be longer than the table, if the graph has grown since
+	void copyInto(int[] next, double[] dist) {
+		System.arraycopy(nextEdge, 0, next, 0, nextEdge.length);
+		System.arraycopy(distance, 0, dist, 0, distance.length);
+		Arrays.fill(next, nextEdge.length, next.length, -1);
+		Arrays.fill(dist, distance.length, dist.length, Double.POSITIVE_INFINITY);
+	}
+
+	public long sizeInBytes() {
+		return 16L + nextEdge.length * 4L + distance.length * 8L;
+	}
+}
@@ -25,14 +25,14 @@ public class PriorityQueue<Value, Key extends Comparable<Key>> {
 		Node n = map.get(value); 
 		if (n == null) {
 			n = new Node(key, value);
+			n.index = nodes.size();
 			nodes.add(n);
 			map.put(value, n);
 			siftUp(nodes.size() - 1);
 		} else {
 			if (key.compareTo(n.key) < 0) { 
 				n.key = key;
-				// bad running time here
-				siftUp(nodes.indexOf(n));
+				siftUp(n.index);
 			}
 		}
 	}
@@ -47,8 +47,9 @@ public class PriorityQueue<Value, Key extends Comparable<Key>> {
 		} else {
 			Value toRet = nodes.get(0).value;
 			map.remove(toRet);
-			nodes.set(0, nodes.get(nodes.size() - 1));
-			nodes.remove(nodes.size() - 1);
+			Node last = nodes.remove(nodes.size() - 1);
+			last.index = 0;
+			nodes.set(0, last);
 			siftDown(0);
 			return toRet;
 		}
@@ -96,6 +97,8 @@ public class PriorityQueue<Value, Key extends Comparable<Key>> {
 		Node temp = nodes.get(i);
 		nodes.set(i, nodes.get(j));
 		nodes.set(j, temp);
+		nodes.get(i).index = i;
+		nodes.get(j).index = j;
 	}
 	
 	private int left(int ind) { return ind * 2 + 1; }
@@ -113,6 +116,7 @@ public class PriorityQueue<Value, Key extends Comparable<Key>> {
 	private class Node {
 		Key key;
 		Value value;
+		int index;
 		
 		public Node(Key key, Value value) {
 			this.key = key;
@@ -10,21 +10,26 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import javax.swing.JFrame;
 
 import com.heliomug.utils.WeidertPanel;
 
-public class QuadTree<T extends Boundable> {
+public class QuadTree<T extends Boundable> implements SpatialIndex<T> {
 	private static final int MAX_CAPACITY = 5;
+	// lower than MAX_CAPACITY so a node doesn't flap between split and merged
+	private static final int MERGE_CAPACITY = 3;
 
 	private QuadTree<T>[] subTrees;
 	private List<T> payload;
 	private int level;
+	private int size;
 	private Rectangle2D bounds;
 	
 	public QuadTree() {
 		level = 0;
+		size = 0;
 		this.payload = new ArrayList<T>();
 		this.subTrees = null;
 		bounds = new Rectangle2D.Double(0, 0, 10, 10);
@@ -41,6 +46,25 @@ public class QuadTree<T extends Boundable> {
 	}
 	
 	
+	public synchronized int size() {
+		return size;
+	}
+	
+	public synchronized Rectangle2D getBounds() {
+		return bounds;
+	}
+	
+	public synchronized void refill(List<T> li, Rectangle2D bounds) {
+		this.clear();
+		this.subTrees = null;
+		this.payload = new ArrayList<T>();
+		this.level = 0;
+		this.bounds = bounds;
+		for (T t : li) {
+			insert(t);
+		}
+	}
+	
 	public synchronized void refill(List<T> li) {
 		this.clear();
 		
@@ -71,6 +95,7 @@ public class QuadTree<T extends Boundable> {
 	
 	public synchronized void clear() {
 		payload.clear();
+		size = 0;
 		if (subTreesExist()) {
 			for (int i = 0 ; i < subTrees.length ; i++) {
 				if (subTrees[i] != null) {
@@ -100,10 +125,14 @@ public class QuadTree<T extends Boundable> {
 	}
 	
 	public synchronized int getIndex(Boundable b) {
+		return getIndex(b.getBounds());
+	}
+	
+	private int getIndex(Rectangle2D r) {
 		int toRet = -1;
 		
 		for (int i = 0 ; i < subTrees.length ; i++) {
-			if (subTrees[i].bounds.contains(b.getBounds())) {
+			if (subTrees[i].bounds.contains(r)) {
 				toRet = i;
 			}
 		}
@@ -111,6 +140,7 @@ public class QuadTree<T extends Boundable> {
 	}
 	
 	public synchronized void insert(T b) {
+		size++;
 		if (subTreesExist()) {
 			int index = getIndex(b); 
 			
@@ -138,24 +168,149 @@ public class QuadTree<T extends Boundable> {
 		}
 	}
 	
-	private List<T> getPossibleHits(Rectangle2D bounds) {
-		return getPossibleHits(new TestRect(bounds));
+	// the node an item with these bounds lives in
+	private QuadTree<T> locate(Rectangle2D r) {
+		QuadTree<T> node = this;
+		while (node.subTreesExist()) {
+			int index = node.getIndex(r);
+			if (index == -1) break;
+			node = node.subTrees[index];
+		}
+		return node;
+	}
+	
+	public synchronized boolean remove(T b) {
+		return remove(b, b.getBounds());
+	}
+	
+	/*
+	 * Removes an item that was inserted (or last updated) when its bounds were 'at'.
+	 */
+	public synchronized boolean remove(T b, Rectangle2D at) {
+		return removeFrom(b, at) || removeAnywhere(b);
+	}
+	
+	private boolean removeFrom(T b, Rectangle2D at) {
+		boolean removed = false;
+		if (subTreesExist()) {
+			int index = getIndex(at);
+			if (index != -1) {
+				removed = subTrees[index].removeFrom(b, at);
+			}
+		}
+		if (!removed) {
+			removed = payload.remove(b);
+		}
+		if (removed) {
+			size--;
+			maybeMerge();
+		}
+		return removed;
+	}
+	
+	private boolean removeAnywhere(T b) {
+		boolean removed = payload.remove(b);
+		if (!removed && subTreesExist()) {
+			for (int i = 0 ; i < subTrees.length && !removed ; i++) {
+				removed = subTrees[i].removeAnywhere(b);
+			}
+		}
+		if (removed) {
+			size--;
+			maybeMerge();
+		}
+		return removed;
+	}
+	
+	private void maybeMerge() {
+		if (subTreesExist() && size <= MERGE_CAPACITY) {
+			for (int i = 0 ; i < subTrees.length ; i++) {
+				subTrees[i].collect(payload);
+			}
+			subTrees = null;
+		}
+	}
+	
+	private void collect(List<T> into) {
+		into.addAll(payload);
+		if (subTreesExist()) {
+			for (int i = 0 ; i < subTrees.length ; i++) {
+				subTrees[i].collect(into);
+			}
+		}
+	}
+	
+	/*
+	 * Moves an item whose bounds were 'oldBounds' when it was last inserted or updated.
+	 * Nothing happens unless it has moved into a different node.
+	 */
+	public synchronized void update(T b, Rectangle2D oldBounds) {
+		if (locate(oldBounds) != locate(b.getBounds())) {
+			remove(b, oldBounds);
+			insert(b);
+		}
+	}
+	
+	// inclusive, so a node is never skipped when an item in it might still overlap
+	private boolean nodeTouches(double minX, double minY, double maxX, double maxY) {
+		return bounds.getMaxX() >= minX && bounds.getMaxY() >= minY && bounds.getMinX() <= maxX && bounds.getMinY() <= maxY;
 	}
 	
-	private List<T> getPossibleHits(Boundable b) {
+	private List<T> getPossibleHits(Rectangle2D r) {
 		List<T> toRet = new ArrayList<T>();
-		
+		collectPossibleHits(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(), toRet);
+		return toRet;
+	}
+	
+	private void collectPossibleHits(double minX, double minY, double maxX, double maxY, List<T> into) {
 		if (subTreesExist()) {
 			for (int i = 0 ; i < subTrees.length ; i++) {
-				if (subTrees[i].bounds.intersects(b.getBounds())) {
-					toRet.addAll(subTrees[i].getPossibleHits(b));
+				if (subTrees[i].nodeTouches(minX, minY, maxX, maxY)) {
+					subTrees[i].collectPossibleHits(minX, minY, maxX, maxY, into);
 				}
 			}
 		}
-		
-		toRet.addAll(payload);
-		
-		return toRet;
+		into.addAll(payload);
+	}
+	
+	public synchronized void forEachOverlapping(Rectangle2D r, Consumer<? super T> visitor) {
+		forEachOverlapping(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(), visitor);
+	}
+	
+	public synchronized void forEachOverlapping(double minX, double minY, double maxX, double maxY, Consumer<? super T> visitor) {
+		if (subTreesExist()) {
+			for (int i = 0 ; i < subTrees.length ; i++) {
+				if (subTrees[i].nodeTouches(minX, minY, maxX, maxY)) {
+					subTrees[i].forEachOverlapping(minX, minY, maxX, maxY, visitor);
+				}
+			}
+		}
+		for (int i = 0 ; i < payload.size() ; i++) {
+			T b = payload.get(i);
+			if (b.overlaps(minX, minY, maxX, maxY)) {
+				visitor.accept(b);
+			}
+		}
+	}
+	
+	public synchronized boolean anyOverlapping(Rectangle2D r) {
+		return anyOverlapping(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY());
+	}
+	
+	public synchronized boolean anyOverlapping(double minX, double minY, double maxX, double maxY) {
+		for (int i = 0 ; i < payload.size() ; i++) {
+			if (payload.get(i).overlaps(minX, minY, maxX, maxY)) {
+				return true;
+			}
+		}
+		if (subTreesExist()) {
+			for (int i = 0 ; i < subTrees.length ; i++) {
+				if (subTrees[i].nodeTouches(minX, minY, maxX, maxY) && subTrees[i].anyOverlapping(minX, minY, maxX, maxY)) {
+					return true;
+				}
+			}
+		}
+		return false;
 	}
 	
 	public synchronized List<T> intersections(Boundable b) {
@@ -163,14 +318,8 @@ public class QuadTree<T extends Boundable> {
 	}
 	
 	public synchronized List<T> getOverlappers(Rectangle2D bounds) {
-		List<T> li = getPossibleHits(bounds);
-		for (int i = 0 ; i < li.size() ; i++) {
-			T b = li.get(i);
-			if (!b.getBounds().intersects(bounds)) {
-				li.remove(i);
-				i--;
-			}
-		}
+		List<T> li = new ArrayList<T>();
+		forEachOverlapping(bounds, li::add);
 		return li;
 	}
 	
@@ -180,34 +329,34 @@ public class QuadTree<T extends Boundable> {
 	
 	public synchronized List<T> getPossibleHits(Point2D p) {
 		List<T> toRet = new ArrayList<T>();
-		
-		if (subTreesExist()) {
-			for (int i = 0; i < subTrees.length ; i++) {
-				if (subTrees[i].bounds.contains(p)) {
-					toRet.addAll(subTrees[i].getPossibleHits(p));
-				}
-			}
-		}
-		
-		toRet.addAll(payload);
-		
+		collectPossibleHits(p.getX(), p.getY(), p.getX(), p.getY(), toRet);
 		return toRet;
 	}
 
 	public synchronized List<T> getOverlappers(double x, double y) {
-		return getOverlappers(new Point2D.Double(x, y));
+		List<T> li = new ArrayList<T>();
+		collectContaining(x, y, li);
+		return li;
 	}
 	
 	public synchronized List<T> getOverlappers(Point2D p) {
-		List<T> li = getPossibleHits(p);
-		for (int i = 0 ; i < li.size() ; i++) {
-			T b = li.get(i);
-			if (!b.getBounds().contains(p)) {
-				li.remove(i);
-				i--;
+		return getOverlappers(p.getX(), p.getY());
+	}
+	
+	private void collectContaining(double x, double y, List<T> into) {
+		if (subTreesExist()) {
+			for (int i = 0; i < subTrees.length ; i++) {
+				if (subTrees[i].bounds.contains(x, y)) {
+					subTrees[i].collectContaining(x, y, into);
+				}
+			}
+		}
+		for (int i = 0 ; i < payload.size() ; i++) {
+			T b = payload.get(i);
+			if (b.getBounds().contains(x, y)) {
+				into.add(b);
 			}
 		}
-		return li;
 	}
 
 	public synchronized void draw(Graphics2D g) {
@@ -0,0 +1,9 @@
+package com.heliomug.job.traffic;
+
+public class RealTimeClock implements SimClock {
+	public static final RealTimeClock INSTANCE = new RealTimeClock();
+	
+	public long millis() {
+		return System.currentTimeMillis();
+	}
+}
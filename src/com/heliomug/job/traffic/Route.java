@@ -1,64 +1,140 @@
-package com.heliomug.job.traffic;
-
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.geom.Line2D;
-import java.awt.geom.Point2D;
-import java.util.ArrayList;
-import java.util.List;
-
-import com.heliomug.utils.MiscUtils;
-
-public class Route {
-	private static final Color DEFAULT_ROUTE_COLOR = Color.WHITE;
-	
-	private List<Point2D> points;
-	private double mid;
-	
-	public Route() {
-		points = new ArrayList<Point2D>();
-		mid = Math.random();
-	}
-	
-	public boolean isEmpty() {
-		return points.size() == 0;
-	}
-
-	public int size() {
-		return points.size();
-	}
-	
-	public void push(Point2D point) {
-		points.add(point);
-	}
-	
-	public Point2D peek() {
-		return points.get(points.size() - 1);
-	}
-	
-	public Point2D pop() {
-		return points.remove(points.size() - 1);
-	}
-
-	public void draw(Graphics2D g, Point2D start) {
-		draw(g, start, DEFAULT_ROUTE_COLOR);
-	}
-	
-	public void draw(Graphics2D g, Point2D start, Color c) {
-		if (points.size() < 1) return;
-		
-		g.setColor(c);
-		g.draw(new Line2D.Double(start, peek()));
-		draw(g);
-	}
-	
-	private void draw(Graphics2D g) {
-		for (int i = 0 ; i < points.size() - 1 ; i++) {
-			Point2D to = points.get(i);
-			Point2D from = points.get(i + 1);
-			g.draw(new Line2D.Double(from, to));
-			MiscUtils.drawArrow(g, MiscUtils.extrapolate(from, to, mid), MiscUtils.heading(from, to), .5);
-		}
-	}
-	
-}
+package com.heliomug.job.traffic;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+
+import com.heliomug.utils.MiscUtils;
+
+/**
+ * The lanes from one intersection to another, as ids into a lane table shared with the
+ * MapGraph that found them.  Waypoints (the source intersection, then the start, middle
+ * and finish of each lane) are worked out from the lanes when asked for, and nothing
+ * about a vehicle's progress is kept here, so one route can be shared by every vehicle
+ * making the same trip.
+ */
+public class Route {
+	private static final int[] NO_LANES = new int[0];
+
+	private final Lane[] laneTable;
+	private final int[] laneIds;
+	private final Point2D source;
+	private final double cost;
+	private final double mid;
+
+	// a route that's already where it's going
+	public Route(Point2D source) {
+		this(null, NO_LANES, source, 0);
+	}
+
+	public Route(Lane[] laneTable, int[] laneIds, Point2D source, double cost) {
+		this.laneTable = laneTable;
+		this.laneIds = laneIds;
+		this.source = source;
+		this.cost = cost;
+		mid = Math.random();
+	}
+
+	public double getCost() { return cost; }
+	public int getLaneCount() { return laneIds.length; }
+
+	boolean usesEdge(int edge) {
+		for (int id : laneIds) {
+			if (id == edge) return true;
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int size() {
+		return laneIds.length * 3 + 1;
+	}
+
+	/*
+	 * Routes are read, not consumed: whoever follows one keeps a cursor, starting from
+	 * first() and moving on with next() until isDone().  The cursor counts the waypoints
+	 * left after the one it's at, so it counts down.
+	 */
+	public int first() {
+		return size() - 1;
+	}
+
+	public int next(int cursor) {
+		return cursor - 1;
+	}
+
+	public boolean isDone(int cursor) {
+		return cursor < 0;
+	}
+
+	public Point2D get(int cursor) {
+		int w = size() - 1 - cursor;
+		if (w == 0) return source;
+		Lane lane = laneTable[laneIds[(w - 1) / 3]];
+		switch ((w - 1) % 3) {
+			case 0: return lane.getStart();
+			case 1: return lane.getMid();
+			default: return lane.getFinish();
+		}
+	}
+
+	// the lane a waypoint belongs to, or null for points that aren't on one
+	public Lane getLane(int cursor) {
+		int w = size() - 1 - cursor;
+		return w == 0 ? null : laneTable[laneIds[(w - 1) / 3]];
+	}
+
+	/*
+	 * Which of i's approaches the waypoint comes in on: the lane's, for the finish of a
+	 * lane into i, or CENTRE_APPROACH for i itself as the source.
+	 */
+	public int getApproach(int cursor, Intersection i) {
+		int w = size() - 1 - cursor;
+		if (w == 0) {
+			return source.equals(i.getLocation()) ? Intersection.CENTRE_APPROACH : Intersection.NO_APPROACH;
+		}
+		Lane lane = laneTable[laneIds[(w - 1) / 3]];
+		if ((w - 1) % 3 != 2 || lane.getFinishIntersection() != i) {
+			return Intersection.NO_APPROACH;
+		}
+		return lane.getApproach();
+	}
+
+	public Lane getNextLane(int cursor) {
+		Lane current = getLane(cursor);
+		for (int c = next(cursor) ; !isDone(c) ; c = next(c)) {
+			if (getLane(c) != current) {
+				return getLane(c);
+			}
+		}
+		return null;
+	}
+
+	public void draw(Graphics2D g, Point2D start, int cursor) {
+		draw(g, start, Color.WHITE, cursor);
+	}
+
+	public void draw(Graphics2D g, Point2D start, Color c, int cursor) {
+		if (isDone(cursor)) return;
+
+		g.setColor(c);
+		g.draw(new Line2D.Double(start, get(cursor)));
+		draw(g, cursor);
+	}
+
+	private void draw(Graphics2D g, int cursor) {
+		for (int c = cursor ; !isDone(next(c)) ; c = next(c)) {
+			drawLeg(g, get(c), get(next(c)));
+		}
+	}
+
+	private void drawLeg(Graphics2D g, Point2D from, Point2D to) {
+		g.draw(new Line2D.Double(from, to));
+		MiscUtils.drawArrow(g, MiscUtils.extrapolate(from, to, mid), MiscUtils.heading(from, to), .5);
+	}
+
+}
@@ -0,0 +1,175 @@
+package com.heliomug.job.traffic;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds routes off the simulation thread.  Requests made during a tick wait in a queue;
+ * when the tick ends up to a batch of them are split between a fixed pool of workers,
+ * and the routes are handed to their vehicles when the next tick starts.  Vehicles sit
+ * still until then.  With no workers, batches are solved on the calling thread instead.
+ */
+public class RoutingService {
+	public static final int DEFAULT_CAPACITY = 256;
+	public static final int DEFAULT_MAX_BATCH = 64;
+
+	private final ExecutorService pool;
+	private final int workers;
+	private final int capacity;
+	private final int maxBatch;
+
+	private final ArrayDeque<Request> queued;
+	private final List<Request> inFlight;
+	private final List<Future<?>> tasks;
+
+	private long routesFound;
+	private long totalLatencyNanos;
+	private long maxLatencyNanos;
+	private int maxQueueDepth;
+
+	public RoutingService() {
+		this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), DEFAULT_CAPACITY, DEFAULT_MAX_BATCH);
+	}
+
+	/*
+	 * capacity bounds how many requests can be waiting before hasCapacity says no, and
+	 * maxBatch how many are sent off at the end of one tick.
+	 */
+	public RoutingService(int workers, int capacity, int maxBatch) {
+		this.workers = workers;
+		this.capacity = capacity;
+		this.maxBatch = maxBatch;
+		this.pool = workers > 0 ? Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "routing");
+			t.setDaemon(true);
+			return t;
+		}) : null;
+		queued = new ArrayDeque<Request>();
+		inFlight = new ArrayList<Request>();
+		tasks = new ArrayList<Future<?>>();
+	}
+
+	public int getWorkers() { return workers; }
+	public int getQueueDepth() { return queued.size() + inFlight.size(); }
+	public int getMaxQueueDepth() { return maxQueueDepth; }
+	public long getRoutesFound() { return routesFound; }
+	public double getMeanLatencyMillis() { return routesFound == 0 ? 0 : totalLatencyNanos / 1e6 / routesFound; }
+	public double getMaxLatencyMillis() { return maxLatencyNanos / 1e6; }
+	public boolean hasCapacity() { return getQueueDepth() < capacity; }
+
+	// parks v until a route from start to finish is ready; doesn't check capacity
+	public void request(Vehicle v, Point2D start, Point2D finish) {
+		v.awaitRoute(finish);
+		queued.add(new Request(v, start, finish));
+		maxQueueDepth = Math.max(maxQueueDepth, getQueueDepth());
+	}
+
+	/*
+	 * Finds v a new route to where it's already going, starting from start, without
+	 * parking it; it's handed over as a detour to take once v is off the lane after.
+	 */
+	public void reroute(Vehicle v, Point2D start, Lane after) {
+		Request r = new Request(v, start, v.getDestination());
+		r.after = after;
+		r.detour = true;
+		queued.add(r);
+		maxQueueDepth = Math.max(maxQueueDepth, getQueueDepth());
+	}
+
+	// sends the next batch off to be solved; call at the end of a tick, after deliver
+	public void flush(MapGraph graph) {
+		int count = Math.min(queued.size(), maxBatch);
+		if (count == 0) return;
+		for (int i = 0 ; i < count ; i++) {
+			inFlight.add(queued.poll());
+		}
+		if (pool == null) {
+			solve(graph, inFlight);
+			return;
+		}
+		int chunk = (count + workers - 1) / workers;
+		for (int from = 0 ; from < count ; from += chunk) {
+			final List<Request> part = inFlight.subList(from, Math.min(count, from + chunk));
+			tasks.add(pool.submit(() -> solve(graph, part)));
+		}
+	}
+
+	// waits for the batch sent last tick and gives its vehicles their routes
+	public void deliver(VehicleStore store) {
+		if (!quiesce()) return;
+		for (Request r : inFlight) {
+			long latency = r.solved - r.requested;
+			routesFound++;
+			totalLatencyNanos += latency;
+			maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+			Vehicle v = r.vehicle;
+			if (!store.contains(v) || !v.isAlive()) continue;
+			if (r.detour) {
+				// unless it's finished that trip meanwhile
+				if (!v.isWaitingForRoute() && !v.completedMission() && v.getDestination() == r.finish) {
+					v.takeDetour(r.route, r.after);
+				}
+			} else if (v.isWaitingForRoute()) {
+				v.setRoute(r.route, r.finish);
+			}
+		}
+		inFlight.clear();
+	}
+
+	/*
+	 * Waits for the batch in flight without handing its routes out, so the map can be
+	 * edited safely.  Returns false if interrupted first.
+	 */
+	public boolean quiesce() {
+		for (Future<?> task : tasks) {
+			try {
+				task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				throw new RuntimeException("route search failed", e.getCause());
+			}
+		}
+		tasks.clear();
+		return true;
+	}
+
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	private static void solve(MapGraph graph, List<Request> requests) {
+		for (Request r : requests) {
+			r.route = graph.getRoute(r.start, r.finish);
+			r.solved = System.nanoTime();
+		}
+	}
+
+	private static class Request {
+		final Vehicle vehicle;
+		final Point2D start;
+		final Point2D finish;
+		final long requested;
+		boolean detour;
+		Lane after;
+		// written by a worker, read after its task is joined
+		Route route;
+		long solved;
+
+		Request(Vehicle vehicle, Point2D start, Point2D finish) {
+			this.vehicle = vehicle;
+			this.start = start;
+			this.finish = finish;
+			this.requested = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package com.heliomug.job.traffic;
+
+public enum RoutingStrategy {
+	// plain Dijkstra from the source until the whole graph is settled
+	DIJKSTRA,
+	// Dijkstra guided by straight-line distance to the target
+	A_STAR,
+	// Dijkstra from both ends at once, stopping when the searches meet
+	BIDIRECTIONAL,
+	// bidirectional search over a precomputed ContractionHierarchy
+	CONTRACTION_HIERARCHY,
+	// one reverse shortest-path tree per destination, shared by every vehicle going there
+	NEXT_HOP
+}
@@ -0,0 +1,51 @@
+package com.heliomug.job.traffic;
+
+/**
+ * Real time run at an adjustable multiple, starting from a given simulated time.  A
+ * scale of 0 (or pause()) stops the clock.
+ */
+public class ScaledClock implements SimClock {
+	private long baseMillis;
+	private long baseNanos;
+	private double scale;
+	private boolean paused;
+	
+	public ScaledClock() {
+		this(0, 1);
+	}
+	
+	public ScaledClock(long startMillis, double scale) {
+		this.baseMillis = startMillis;
+		this.baseNanos = System.nanoTime();
+		this.scale = scale;
+		this.paused = false;
+	}
+	
+	public synchronized long millis() {
+		if (paused) return baseMillis;
+		return baseMillis + (long)((System.nanoTime() - baseNanos) / 1e6 * scale);
+	}
+	
+	public synchronized double getScale() { return scale; }
+	public synchronized boolean isPaused() { return paused; }
+	
+	public synchronized void setScale(double scale) {
+		set(millis());
+		this.scale = scale;
+	}
+	
+	public synchronized void set(long millis) {
+		baseMillis = millis;
+		baseNanos = System.nanoTime();
+	}
+	
+	public synchronized void pause() {
+		set(millis());
+		paused = true;
+	}
+	
+	public synchronized void resume() {
+		set(millis());
+		paused = false;
+	}
+}
@@ -0,0 +1,188 @@
+package com.heliomug.job.traffic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Looks for light timings that get the most trips done.  Candidate SignalPlans are each
+ * run on fresh headless copies of a world, as many at once as there are cores, every copy
+ * with the same seeds so the plans see the same traffic.  Plans are ranked by trips
+ * finished, then by mean travel time, and the best few are printed alongside the default.
+ *
+ * Usage: SignalOptimizer [--plans=N] [--runs=N] [--seed=N] [--threads=N] WORLD SECONDS [MAX_VEHICLES]
+ * where WORLD is as for MainHeadless.  --plans is how many plans to try besides the
+ * default (drawn at random, 48 unless given), and --runs how many seeds each is run with.
+ */
+public class SignalOptimizer {
+	private static final int DEFAULT_PLANS = 48;
+	private static final int DEFAULT_RUNS = 1;
+	private static final long DEFAULT_SEED = 1;
+	private static final int SHOW_BEST = 10;
+
+	// ranges plans are drawn from, in ms
+	private static final int MIN_LIGHT = 3000;
+	private static final int MAX_LIGHT = 20000;
+	private static final int MIN_GAP = 100;
+	private static final int MAX_GAP = 1500;
+	private static final int MIN_YELLOW = 0;
+	private static final int MAX_YELLOW = 1500;
+	private static final int MIN_IDLE = 500;
+	private static final int MAX_IDLE = 5000;
+
+	private final String worldName;
+	private final double seconds;
+	private final int maxVehicles;
+	private final long seed;
+	private final int runs;
+
+	public SignalOptimizer(String worldName, double seconds, int maxVehicles, long seed, int runs) {
+		this.worldName = worldName;
+		this.seconds = seconds;
+		this.maxVehicles = maxVehicles;
+		this.seed = seed;
+		this.runs = runs;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		System.setProperty("java.awt.headless", "true");
+		int plans = DEFAULT_PLANS;
+		int runs = DEFAULT_RUNS;
+		long seed = DEFAULT_SEED;
+		int threads = Runtime.getRuntime().availableProcessors();
+		while (args.length > 0 && args[0].startsWith("--")) {
+			if (args[0].startsWith("--plans=")) {
+				plans = Integer.parseInt(args[0].substring("--plans=".length()));
+			} else if (args[0].startsWith("--runs=")) {
+				runs = Integer.parseInt(args[0].substring("--runs=".length()));
+			} else if (args[0].startsWith("--seed=")) {
+				seed = Long.parseLong(args[0].substring("--seed=".length()));
+			} else if (args[0].startsWith("--threads=")) {
+				threads = Integer.parseInt(args[0].substring("--threads=".length()));
+			}
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		if (args.length < 2) {
+			System.err.println("usage: SignalOptimizer [--plans=N] [--runs=N] [--seed=N] [--threads=N] WORLD SECONDS [MAX_VEHICLES]");
+			System.exit(1);
+		}
+		// fail now rather than on every worker
+		World sample = MainHeadless.loadWorld(args[0]);
+		int maxVehicles = args.length > 2 ? Integer.parseInt(args[2]) : sample.getMaxVehicles();
+		sample.getRoutingService().shutdown();
+
+		SignalOptimizer optimizer = new SignalOptimizer(args[0], Double.parseDouble(args[1]), maxVehicles, seed, runs);
+		List<SignalPlan> candidates = new ArrayList<SignalPlan>();
+		candidates.add(SignalPlan.DEFAULT);
+		candidates.addAll(randomPlans(plans, new Random(seed)));
+
+		long start = System.nanoTime();
+		List<Result> results = optimizer.evaluate(candidates, threads);
+		double wall = (System.nanoTime() - start) / 1e9;
+
+		Result baseline = results.get(0);
+		results.sort((a, b) -> a.compareTo(b));
+		System.out.println(String.format("%d plans x %d runs of %.0f s on %s, %d threads", candidates.size(), runs, optimizer.seconds, args[0], threads));
+		System.out.println(String.format("%5s %8s %10s  %s", "rank", "trips", "mean s", "plan"));
+		for (int i = 0 ; i < Math.min(SHOW_BEST, results.size()) ; i++) {
+			System.out.println(results.get(i).format(i + 1));
+		}
+		System.out.println(baseline.format(results.indexOf(baseline) + 1) + "  (default)");
+		double evalSeconds = 0;
+		for (Result r : results) {
+			evalSeconds += r.wallNanos / 1e9;
+		}
+		System.out.println(String.format("wall time:         %.2f s", wall));
+		System.out.println(String.format("per plan:          %.3f s elapsed, %.3f s of one thread", wall / candidates.size(), evalSeconds / candidates.size()));
+	}
+
+	// in the order the plans were given
+	public List<Result> evaluate(List<SignalPlan> plans, int threads) throws InterruptedException, ExecutionException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "signal optimizer");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (SignalPlan plan : plans) {
+				futures.add(pool.submit(() -> evaluate(plan)));
+			}
+			List<Result> results = new ArrayList<Result>();
+			for (Future<Result> f : futures) {
+				results.add(f.get());
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public Result evaluate(SignalPlan plan) throws IOException {
+		long start = System.nanoTime();
+		long trips = 0;
+		double tripTime = 0;
+		for (int run = 0 ; run < runs ; run++) {
+			World world = MainHeadless.loadWorld(worldName);
+			// routes on this thread; the other cores are busy with other plans
+			world.setRoutingService(new RoutingService(0, RoutingService.DEFAULT_CAPACITY, RoutingService.DEFAULT_MAX_BATCH));
+			world.setSeed(seed + run);
+			world.setMaxVehicles(maxVehicles);
+			world.setSignalPlan(plan);
+			world.runFor(seconds);
+			trips += world.getTripsFinished();
+			tripTime += world.getMeanTripTime() * world.getTripsFinished();
+		}
+		return new Result(plan, (double)trips / runs, trips == 0 ? 0 : tripTime / trips, System.nanoTime() - start);
+	}
+
+	// the gap and yellow always fit inside the light
+	private static List<SignalPlan> randomPlans(int count, Random random) {
+		List<SignalPlan> plans = new ArrayList<SignalPlan>();
+		while (plans.size() < count) {
+			int light = between(random, MIN_LIGHT, MAX_LIGHT);
+			int gap = between(random, MIN_GAP, MAX_GAP);
+			int yellow = between(random, MIN_YELLOW, MAX_YELLOW);
+			int idle = between(random, MIN_IDLE, MAX_IDLE);
+			if (gap + yellow < light) {
+				plans.add(new SignalPlan(light, gap, yellow, idle));
+			}
+		}
+		return plans;
+	}
+
+	// to the nearest 100 ms
+	private static int between(Random random, int min, int max) {
+		return (min + random.nextInt(max - min + 1)) / 100 * 100;
+	}
+
+	public static class Result implements Comparable<Result> {
+		public final SignalPlan plan;
+		public final double trips;
+		public final double meanTripTime;
+		public final long wallNanos;
+
+		Result(SignalPlan plan, double trips, double meanTripTime, long wallNanos) {
+			this.plan = plan;
+			this.trips = trips;
+			this.meanTripTime = meanTripTime;
+			this.wallNanos = wallNanos;
+		}
+
+		// most trips first, then quickest
+		public int compareTo(Result other) {
+			if (trips != other.trips) return Double.compare(other.trips, trips);
+			return Double.compare(meanTripTime, other.meanTripTime);
+		}
+
+		String format(int rank) {
+			return String.format("%5d %8.1f %10.2f  %s", rank, trips, meanTripTime, plan);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.heliomug.job.traffic;
+
+/**
+ * How a lit intersection times its lights, all in ms of simulated time.  A light stays
+ * green for up to lightDuration, going yellow yellowWait before the gap at its end and
+ * red for the last gapWait of it.  It also goes red early once nobody's gone through
+ * for lastSinceCarWait, and the next light comes on gapWait after that.
+ */
+public class SignalPlan {
+	public static final SignalPlan DEFAULT = new SignalPlan(10000, 500, 500, 2000);
+
+	private final int lightDuration;
+	private final int gapWait;
+	private final int yellowWait;
+	private final int lastSinceCarWait;
+
+	public SignalPlan(int lightDuration, int gapWait, int yellowWait, int lastSinceCarWait) {
+		this.lightDuration = lightDuration;
+		this.gapWait = gapWait;
+		this.yellowWait = yellowWait;
+		this.lastSinceCarWait = lastSinceCarWait;
+	}
+
+	public int getLightDuration() { return lightDuration; }
+	public int getGapWait() { return gapWait; }
+	public int getYellowWait() { return yellowWait; }
+	public int getLastSinceCarWait() { return lastSinceCarWait; }
+
+	public SignalPlan withLightDuration(int dur) {
+		return new SignalPlan(dur, gapWait, yellowWait, lastSinceCarWait);
+	}
+
+	public String toString() {
+		return String.format("light %d gap %d yellow %d idle %d", lightDuration, gapWait, yellowWait, lastSinceCarWait);
+	}
+}
@@ -0,0 +1,9 @@
+package com.heliomug.job.traffic;
+
+/**
+ * Source of simulation time in milliseconds.  Everything that ages, times a light or
+ * delays a spawn reads one of these instead of the wall clock.
+ */
+public interface SimClock {
+	long millis();
+}
@@ -0,0 +1,28 @@
+package com.heliomug.job.traffic;
+
+/**
+ * Pure simulated time that only moves when it's told to.
+ */
+public class SimulatedClock implements SimClock {
+	private volatile long millis;
+	
+	public SimulatedClock() {
+		this(0);
+	}
+	
+	public SimulatedClock(long startMillis) {
+		millis = startMillis;
+	}
+	
+	public long millis() {
+		return millis;
+	}
+	
+	public void set(long millis) {
+		this.millis = millis;
+	}
+	
+	public void advance(long millis) {
+		this.millis += millis;
+	}
+}
@@ -0,0 +1,116 @@
+package com.heliomug.job.traffic;
+
+import java.util.List;
+
+import com.heliomug.utils.MiscUtils;
+
+/**
+ * Advances a world in fixed time steps on a single thread.  Each tick runs a vehicle
+ * phase, an intersection phase and a bookkeeping phase (spawning, finished trips), in
+ * that order, so a run is independent of thread scheduling.
+ * 
+ * The engine owns the world's simulated clock.  When started on its own thread it paces
+ * ticks against a scaled real-time clock, so speeding up, slowing down or pausing only
+ * changes how fast ticks are run, never what happens in them.
+ */
+public class SimulationEngine implements Runnable {
+	public static final double DEFAULT_DT = .01;
+
+	private static final int SLEEP_TIME = 5;
+	private static final long MAX_NANOS_PER_WAKE = 50000000;
+	
+	private World world;
+	private double dt;
+	private long ticks;
+	private volatile boolean running;
+	
+	private SimulatedClock clock;
+	private ScaledClock pace;
+
+	public SimulationEngine(World world) {
+		this(world, DEFAULT_DT);
+	}
+	
+	public SimulationEngine(World world, double dt) {
+		this.world = world;
+		this.dt = dt;
+		this.ticks = 0;
+		this.running = false;
+		this.clock = new SimulatedClock();
+		this.pace = new ScaledClock();
+	}
+	
+	public SimulatedClock getClock() { return clock; }
+	public double getSpeed() { return pace.getScale(); }
+	public void setSpeed(double multiplier) { pace.setScale(multiplier); }
+	public boolean isPaused() { return pace.isPaused(); }
+	public void pause() { pace.pause(); }
+	public void resume() { pace.resume(); }
+	
+	public double getDt() { return dt; }
+	public long getTicks() { return ticks; }
+	public double getTime() { return ticks * dt; }
+	public boolean isRunning() { return running; }
+	
+	public void tick() {
+		synchronized (world) {
+			vehiclePhase();
+			intersectionPhase();
+			bookkeepingPhase();
+		}
+		ticks++;
+		clock.set(Math.round(ticks * dt * 1000));
+	}
+	
+	private void vehiclePhase() {
+		List<Vehicle> vehicles = world.getVehicles();
+		for (int i = 0 ; i < vehicles.size() ; i++) {
+			vehicles.get(i).step(dt);
+		}
+		world.getVehicleStore().integrate(dt);
+		world.getMap().sortLaneOccupants();
+	}
+	
+	// only intersections with something to do are woken, by arrivals, departures or their own timers
+	private void intersectionPhase() {
+		world.getMap().getTimers().advanceTo(clock.millis());
+	}
+	
+	private void bookkeepingPhase() {
+		world.step(dt);
+	}
+	
+	public void runFor(double seconds) {
+		long target = ticks + Math.round(seconds / dt);
+		while (ticks < target) {
+			tick();
+		}
+	}
+	
+	public void start() {
+		running = true;
+		Thread t = new Thread(this, "simulation");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	public void stop() {
+		running = false;
+	}
+	
+	public void run() {
+		pace.set(clock.millis());
+		while (running) {
+			long wakeStart = System.nanoTime();
+			while (clock.millis() < pace.millis()) {
+				tick();
+				if (System.nanoTime() - wakeStart > MAX_NANOS_PER_WAKE) {
+					// can't keep up; drop the backlog rather than spiral
+					pace.set(clock.millis());
+					break;
+				}
+			}
+			MiscUtils.sleep(SLEEP_TIME);
+		}
+	}
+}
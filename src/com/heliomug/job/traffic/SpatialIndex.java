@@ -0,0 +1,36 @@
+package com.heliomug.job.traffic;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Something that can find the items overlapping a point or rectangle.  Items that move
+ * are expected to be updated (or removed) with the bounds they had when last indexed.
+ */
+public interface SpatialIndex<T extends Boundable> {
+	int size();
+	
+	void refill(List<T> li);
+	void refill(List<T> li, Rectangle2D bounds);
+	void clear();
+	
+	void insert(T b);
+	boolean remove(T b);
+	boolean remove(T b, Rectangle2D at);
+	void update(T b, Rectangle2D oldBounds);
+	
+	List<T> getOverlappers(Rectangle2D bounds);
+	List<T> getOverlappers(Boundable b);
+	List<T> getOverlappers(Point2D p);
+	List<T> getOverlappers(double x, double y);
+	
+	void forEachOverlapping(Rectangle2D bounds, Consumer<? super T> visitor);
+	void forEachOverlapping(double minX, double minY, double maxX, double maxY, Consumer<? super T> visitor);
+	boolean anyOverlapping(Rectangle2D bounds);
+	boolean anyOverlapping(double minX, double minY, double maxX, double maxY);
+	
+	void draw(Graphics2D g);
+}
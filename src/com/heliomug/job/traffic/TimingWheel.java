@@ -0,0 +1,148 @@
+package com.heliomug.job.traffic;
+
+/**
+ * Runs timers at given simulated times, in milliseconds.  Timers wait in a hierarchy of
+ * wheels of 64 slots: the first wheel has a slot per ms, the next a slot per 64 ms and so
+ * on, and as time reaches a coarse slot its timers drop down to finer wheels.  Anything
+ * further off than the last wheel reaches waits in an overflow list.  Scheduling and
+ * cancelling are O(1), and advancing costs a slot per ms plus the timers that come due,
+ * however many are waiting.
+ */
+public class TimingWheel {
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int LEVELS = 4;
+	// level LEVELS is the overflow, one slot
+	private static final int OVERFLOW = LEVELS;
+
+	private final Timer[][] heads;
+	private long time;
+	private int size;
+
+	public TimingWheel(long start) {
+		heads = new Timer[LEVELS + 1][];
+		for (int level = 0 ; level < LEVELS ; level++) {
+			heads[level] = new Timer[SLOTS];
+		}
+		heads[OVERFLOW] = new Timer[1];
+		time = start;
+		size = 0;
+	}
+
+	public long getTime() { return time; }
+	public int size() { return size; }
+
+	public Timer newTimer(Runnable action) {
+		return new Timer(action);
+	}
+
+	// (re)schedules t; a time that isn't after getTime() goes off on the next advance
+	public void schedule(Timer t, long at) {
+		if (t.isScheduled()) {
+			unlink(t);
+		} else {
+			size++;
+		}
+		t.due = Math.max(at, time + 1);
+		insert(t);
+	}
+
+	public void cancel(Timer t) {
+		if (t.isScheduled()) {
+			unlink(t);
+			size--;
+		}
+	}
+
+	// runs everything due up to and including now, in order of when it's due
+	public void advanceTo(long now) {
+		while (time < now) {
+			if (size == 0) {
+				time = now;
+				return;
+			}
+			time++;
+			if (lowBitsZero(LEVELS)) {
+				cascade(OVERFLOW, 0);
+			}
+			// coarsest first, since what drops out of one wheel can land in the next one's slot for now
+			for (int level = LEVELS - 1 ; level > 0 ; level--) {
+				if (lowBitsZero(level)) {
+					cascade(level, slotOf(time, level));
+				}
+			}
+			Timer[] wheel = heads[0];
+			int slot = slotOf(time, 0);
+			while (wheel[slot] != null) {
+				Timer t = wheel[slot];
+				unlink(t);
+				size--;
+				t.action.run();
+			}
+		}
+	}
+
+	private boolean lowBitsZero(int level) {
+		return (time & ((1L << (SLOT_BITS * level)) - 1)) == 0;
+	}
+
+	private static int slotOf(long when, int level) {
+		return (int)(when >>> (SLOT_BITS * level)) & (SLOTS - 1);
+	}
+
+	private void cascade(int level, int slot) {
+		Timer t = heads[level][slot];
+		heads[level][slot] = null;
+		while (t != null) {
+			Timer next = t.next;
+			insert(t);
+			t = next;
+		}
+	}
+
+	// the wheel is the finest one whose slots are coarser than where due and time first differ
+	private void insert(Timer t) {
+		long due = t.due;
+		long diff = due ^ time;
+		int level = 0;
+		while (level < LEVELS && (diff >>> (SLOT_BITS * (level + 1))) != 0) {
+			level++;
+		}
+		int slot = level == OVERFLOW ? 0 : slotOf(due, level);
+		t.level = level;
+		t.slot = slot;
+		t.prev = null;
+		t.next = heads[level][slot];
+		if (t.next != null) t.next.prev = t;
+		heads[level][slot] = t;
+	}
+
+	private void unlink(Timer t) {
+		if (t.prev == null) {
+			heads[t.level][t.slot] = t.next;
+		} else {
+			t.prev.next = t.next;
+		}
+		if (t.next != null) t.next.prev = t.prev;
+		t.prev = t.next = null;
+		t.level = -1;
+	}
+
+	public static class Timer {
+		private final Runnable action;
+		private long due;
+		private int level;
+		private int slot;
+		private Timer prev;
+		private Timer next;
+
+		private Timer(Runnable action) {
+			this.action = action;
+			level = -1;
+		}
+
+		public boolean isScheduled() { return level >= 0; }
+		// when it'll actually go off, which for a time already past is the next ms
+		public long getDue() { return due; }
+	}
+}
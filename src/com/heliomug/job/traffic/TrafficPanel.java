@@ -39,6 +39,7 @@ public class TrafficPanel extends JPanel implements Runnable {
 	private static final int MAX_MAX_VEHICLES = 500;
 	private static final int MAX_VEHICLES_PER_SECOND = 20;
 	private static final int MAX_LIGHT_DURATION = 20;
+	private static final int MAX_SPEED_MULTIPLIER = 100;
 	
 	private World world;
 
@@ -102,7 +103,7 @@ public class TrafficPanel extends JPanel implements Runnable {
 		infoPanel.add(new JLabel("Vehicles Born: ") {
 			@Override
 			public void paintComponent(Graphics g) {
-				this.setText(String.format("Trips Finished: %d", Vehicle.getVehiclesReachedGoal()));
+				this.setText(String.format("Trips Finished: %d", world.getTripsFinished()));
 				super.paintComponent(g);
 			}
 		});
@@ -152,6 +153,13 @@ public class TrafficPanel extends JPanel implements Runnable {
 			}
 		});
 		sliderPanel.add(lightSlider);
+		final SuperSlider speedSlider = new SuperSlider("Speed: %sx", 0, MAX_SPEED_MULTIPLIER, 1, MAX_SPEED_MULTIPLIER / 5);
+		speedSlider.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent ce) {
+				world.getEngine().setSpeed(speedSlider.getValue());
+			}
+		});
+		sliderPanel.add(speedSlider);
 		controlPanel.add(sliderPanel, BorderLayout.NORTH);
 		JPanel buttonPanel = new JPanel();
 		buttonPanel.setLayout(new GridLayout(0, 4));
@@ -184,6 +192,20 @@ public class TrafficPanel extends JPanel implements Runnable {
 			}
 		});
 		buttonPanel.add(button);
+		button = new SuperButton("Pause", new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				SimulationEngine engine = world.getEngine();
+				if (engine.isPaused()) {
+					engine.resume();
+					((JButton)e.getSource()).setText("Pause");
+				} else {
+					engine.pause();
+					((JButton)e.getSource()).setText("Resume");
+				}
+			}
+		});
+		buttonPanel.add(button);
 		/*
 		button = new SuperButton("Show Trails", new ActionListener() {
 			@Override
@@ -4,13 +4,13 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
-import java.awt.geom.Rectangle2D;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import com.heliomug.utils.MiscUtils;
 
-public class Vehicle extends CircleSprite implements Runnable {
+public class Vehicle extends CircleSprite {
 	public static final int COUNTER_CLOCKWISE = 1;
 	public static final int STRAIGHT = 0;
 	public static final int CLOCKWISE = -1;
@@ -19,102 +19,212 @@ public class Vehicle extends CircleSprite implements Runnable {
 	private static final boolean DEFAULT_SHOW_TURRET = false;
 	private static final boolean DEFAULT_SHOW_TRAIL = false;
 
-	private static final int SLEEP_LENGTH = 10;
+	public static final double DEFAULT_RADIUS = .25;
 
-	private static final int LOOK_AHEAD_LENGTHS = 6;
-	private static final double MAX_SPEED_LENGTHS = 10;
-	private static final double ZERO_SPEED_LENGTHS = 2;
+	static final double MAX_SPEED_LENGTHS = 10;
+	static final double ZERO_SPEED_LENGTHS = 2;
+	static final double MAX_SPEED = 5;
+	static final double ACCEL = 30;
 
+	private static final int LOOK_AHEAD_LENGTHS = 6;
+	// switching has costs the graph can't see, like a turn across traffic, so a detour
+	// has to save this much of what's left; it also stops vehicles flipping between routes
+	private static final double MIN_DETOUR_SAVING = .5;
 	private static final double ANGULAR_SPEED = 4 * Math.PI;
-	private static final double MAX_SPEED = 5;
 	private static final double MIN_SPEED_TO_TURN = 1;
-	private static final double ACCEL = 30;
-	
-	private static final double DEFAULT_RADIUS = .25;
 
 	private static final double TURRET_LENGTH = DEFAULT_RADIUS * 2;
-	private static final Color TURRET_COLOR = Color.WHITE;
-	private static final Color BRAKE_COLOR = Color.RED;
-	private static final Color FREE_COLOR = Color.GREEN;
-	private static final Color FROZEN_COLOR = Color.BLUE;
 	private static final double COLOR_CYCLE_LENGTH = 2.0;
 	
-	private static int vehiclesEverBorn = 0;
-	private static int vehiclesReachedGoal = 0;
-	
+	// given by the world it's added to, counting from 1
 	private int number;
 	
 	public boolean logging;
 	
+	// picked the first time it's drawn in its true colour
 	private Color color;
 	private boolean highlighted;
 	
 	private Route route;
+	// a new route to the same place, taken once the vehicle's off detourAfter
+	private Route detour;
+	private Lane detourAfter;
 	private Point2D endGoal;
 	private Point2D nextGoal;
 	private Point2D prevGoal;
 	private Point2D lastGreenLight;
 	
-	private double heading;
-	private double speed;
-	
 	private long lastTimeMoved;
+	private double tripTime;
 	
-	private boolean completedMission;
-	private boolean isAlive;
-	
-	private QuadTree<Vehicle> vehicleTree;
+	private SpatialIndex<Vehicle> vehicleTree;
+	private VehicleStore store;
+	private int slot;
 	private Map map;
 	
 	private Intersection currentIntersection;
-	private boolean isFrozen;
-
-	public static int getVehiclesEverBorn() { return vehiclesEverBorn; }
-	public static int getVehiclesReachedGoal() { return vehiclesReachedGoal; }
+	private ClosestFinder closestAhead;
+	private Lane lane;
+	private int laneSlot;
 
 	private Vehicle() {
 		super(null, DEFAULT_RADIUS);
-		vehiclesEverBorn++;
-		number = vehiclesEverBorn;
-		speed = heading = 0;
-		isAlive = true;
-		completedMission = false;
-		color = MiscUtils.getRandomColor(); 
-		lastTimeMoved = System.currentTimeMillis();
 		vehicleTree = null;
-		isFrozen = false;
+		closestAhead = new ClosestFinder();
+		lane = null;
+		laneSlot = -1;
 		lastGreenLight = null;
 		prevGoal = null;
 	}
 	
-	public Vehicle(Map map, QuadTree<Vehicle> quadTree, Point2D start, Point2D finish) {
+	public Vehicle(Map map, SpatialIndex<Vehicle> vehicleIndex, VehicleStore store, Point2D start, Point2D finish) {
+		this(map, vehicleIndex, store, start);
+		store.heading[slot] = MiscUtils.heading(start, finish);
+		setRoute(start, finish);
+	}
+	
+	// a vehicle with nowhere to go yet; give it a route with setRoute or awaitRoute
+	public Vehicle(Map map, SpatialIndex<Vehicle> vehicleIndex, VehicleStore store, Point2D start) {
 		this();
-		this.setLocation(start);
-		this.speed = 0;
-		this.heading = 0;
-		this.endGoal = finish;
-		this.heading = MiscUtils.heading(start, finish);
-		this.vehicleTree = quadTree;
+		this.store = store;
+		this.slot = store.add(this, start.getX(), start.getY(), DEFAULT_RADIUS);
+		this.vehicleTree = vehicleIndex;
 		this.map = map;
-		setRoute(start, finish);
+		setClock(map.getClock());
+		lastTimeMoved = now();
 	}
 
-	public synchronized boolean isDead() { return !this.isAlive; }
-	public synchronized boolean isAlive() { return this.isAlive; }
+	public boolean isDead() { return !isAlive(); }
+	public boolean isAlive() { return store.hasFlag(slot, VehicleStore.ALIVE); }
 	public int getNumber() { return number; }
-	public int getTimeSinceMoved() { return (int)(System.currentTimeMillis() - lastTimeMoved); }
-	public boolean completedMission() { return this.completedMission; }
+	void setNumber(int n) { number = n; }
+	public int getSlot() { return slot; }
+	public int getTimeSinceMoved() { return (int)(now() - lastTimeMoved); }
+	public boolean completedMission() { return store.hasFlag(slot, VehicleStore.COMPLETED); }
+	public double getTripTime() { return this.tripTime; }
 	public Point2D getNextGoal() { return this.nextGoal; }
+	public Point2D getDestination() { return this.endGoal; }
 	public Point2D getPrevGoal() { return this.prevGoal; }
 	public Point2D getLastGreenLight() { return this.lastGreenLight; }
-	private boolean isFrozen() { return this.isFrozen; }
+	private boolean isFrozen() { return store.hasFlag(slot, VehicleStore.FROZEN); }
+	public boolean isWaitingForRoute() { return store.hasFlag(slot, VehicleStore.ROUTING); }
 	public void setHighlighted(boolean b) { this.highlighted = b; } 
 
 	public void setLastGreenLight(Point2D p) { this.lastGreenLight = p; }
+	public Lane getLane() { return lane; }
+	
+	// which of i's approaches the vehicle's heading in on, going by where it's headed next
+	public int getApproachTo(Intersection i) {
+		int cursor = store.cursor[slot];
+		if (route == null || route.isDone(cursor)) return Intersection.NO_APPROACH;
+		return route.getApproach(cursor, i);
+	}
+	int getLaneSlot() { return laneSlot; }
+	void setLaneSlot(int slot) { this.laneSlot = slot; }
+	void setSlot(int slot) { this.slot = slot; }
+	void setVehicleIndex(SpatialIndex<Vehicle> index) { this.vehicleTree = index; }
+	
+	public double getX() { return store.x[slot]; }
+	public double getY() { return store.y[slot]; }
+	public double getRadius() { return store.radius[slot]; }
+	public double getHeading() { return store.heading[slot]; }
+	public double getSpeed() { return store.speed[slot]; }
+	public Point2D getLocation() { return new Point2D.Double(getX(), getY()); }
+	public void setLocation(Point2D p) { setLocation(p.getX(), p.getY()); }
+	
+	public void setLocation(double x, double y) {
+		store.x[slot] = x;
+		store.y[slot] = y;
+	}
+	
+	public void translate(double dx, double dy) {
+		store.x[slot] += dx;
+		store.y[slot] += dy;
+	}
 	
 	public void setRoute(Point2D start, Point2D finish) {
-		this.route = map.getRoute(start, finish);
-		completedMission = false;
+		setRoute(map.getRoute(start, finish), finish);
+	}
+	
+	public void setRoute(Route route, Point2D finish) {
+		this.route = route;
+		this.endGoal = finish;
+		detour = null;
+		detourAfter = null;
+		store.cursor[slot] = route == null ? -1 : route.first();
+		store.setFlag(slot, VehicleStore.COMPLETED, false);
+		store.setFlag(slot, VehicleStore.ROUTING, false);
+		tripTime = 0;
+	}
+	
+	/*
+	 * Parks the vehicle where it is until a route to finish is handed over with setRoute,
+	 * e.g. by a RoutingService.
+	 */
+	public void awaitRoute(Point2D finish) {
+		if (route == null) {
+			store.heading[slot] = MiscUtils.heading(getLocation(), finish);
+		}
+		this.route = null;
+		this.endGoal = finish;
+		detour = null;
+		detourAfter = null;
+		store.cursor[slot] = -1;
+		store.setFlag(slot, VehicleStore.COMPLETED, false);
+		store.setFlag(slot, VehicleStore.ROUTING, true);
+	}
+	
+	/*
+	 * Switches to another route to the same destination without stopping, once the
+	 * vehicle comes off the lane after; the detour has to start from that lane's
+	 * intersection.  It's ignored if the vehicle's already off after, or unless it costs
+	 * clearly less than the rest of the current route does now.
+	 */
+	public void takeDetour(Route detour, Lane after) {
+		if (detour == null || after == null || lane != after) return;
+		Intersection end = after.getFinishIntersection();
+		if (end == null || !detour.get(detour.first()).equals(end.getLocation())) return;
+		if (detour.getCost() > (1 - MIN_DETOUR_SAVING) * remainingCost(after)) return;
+		this.detour = detour;
+		this.detourAfter = after;
+	}
+	
+	// picks the detour up past its source, as if it had been the route all along
+	private void switchToDetour() {
+		route = detour;
+		store.cursor[slot] = route.next(route.first());
+		detour = null;
+		detourAfter = null;
+	}
+	
+	// what the rest of the route costs the graph now, not counting skip
+	private double remainingCost(Lane skip) {
+		if (route == null) return Double.POSITIVE_INFINITY;
+		MapGraph graph = map.getGraph();
+		double cost = 0;
+		Lane last = null;
+		for (int c = store.cursor[slot] ; !route.isDone(c) ; c = route.next(c)) {
+			Lane l = route.getLane(c);
+			if (l != last) {
+				if (l != null && l != skip) cost += graph.getLaneCost(l);
+				last = l;
+			}
+		}
+		return cost;
+	}
+	
+	// whether what's left of the route uses any of the lanes
+	public boolean routeCrosses(Set<Lane> lanes) {
+		if (route == null) return false;
+		Lane last = null;
+		for (int c = store.cursor[slot] ; !route.isDone(c) ; c = route.next(c)) {
+			Lane l = route.getLane(c);
+			if (l != last) {
+				if (lanes.contains(l)) return true;
+				last = l;
+			}
+		}
+		return false;
 	}
 	
 	public void setNewGoals() {
@@ -123,18 +233,16 @@ public class Vehicle extends CircleSprite implements Runnable {
 	}
 
 	public void freeze(Intersection intersection) {
-		this.isFrozen = true;
+		store.setFlag(slot, VehicleStore.FROZEN, true);
 		//this.currentIntersection = intersection;
 	}
 	
 	public void unfreeze() {
-		this.isFrozen = false;
+		store.setFlag(slot, VehicleStore.FROZEN, false);
 	}
 	
 	private void enterIntersection(Intersection intersection) {
-		if (currentIntersection == null && isAlive) {
-			intersection.takeIn(this);
-			getDt();
+		if (currentIntersection == null && isAlive() && intersection.takeIn(this)) {
 			currentIntersection = intersection;
 		}
 	}
@@ -148,7 +256,9 @@ public class Vehicle extends CircleSprite implements Runnable {
 	
 	
 	private double distanceTo(Vehicle other) {
-		return getLocation().distance(other.getLocation());
+		double dx = store.x[slot] - store.x[other.slot];
+		double dy = store.y[slot] - store.y[other.slot];
+		return Math.sqrt(dx * dx + dy * dy);
 	}
 
 	/*
@@ -159,27 +269,61 @@ public class Vehicle extends CircleSprite implements Runnable {
 	*/
 	
 	
-	private Rectangle2D aheadBounds(double lengths) {
-		Point2D trans = MiscUtils.polar(lengths * getRadius() * 2, heading);
-		return MiscUtils.translate(getBounds(), trans);
+	/*
+	 * On a lane the vehicle ahead is just the one before this one in the lane's order, or
+	 * the last one on the next lane.  The spatial search is only needed off lanes, or
+	 * near the end of one where there might be cross traffic in the intersection.
+	 */
+	private Vehicle getClosestAhead() {
+		if (lane != null) {
+			double range = LOOK_AHEAD_LENGTHS * getRadius() * 2;
+			Vehicle leader = lane.getLeader(this);
+			if (leader == null) {
+				Lane next = route.getNextLane(store.cursor[slot]);
+				leader = (next == null ? null : next.getTail());
+			}
+			if (leader != null && distanceTo(leader) < range) {
+				return leader;
+			}
+			if (lane.getLength() - lane.progressOf(getX(), getY()) > range) {
+				return null;
+			}
+		}
+		return getClosestInSight();
 	}
 	
-	
-	private Vehicle getClosestAhead() {
-		List<Vehicle> li = new ArrayList<Vehicle>();
+	// looks at boxes the vehicle's own size, 0 to LOOK_AHEAD_LENGTHS - 1 lengths ahead of it
+	private Vehicle getClosestInSight() {
+		double r = getRadius();
+		double cos = Math.cos(getHeading()) * r * 2;
+		double sin = Math.sin(getHeading()) * r * 2;
+		closestAhead.reset();
 		for (int i = 0 ; i < LOOK_AHEAD_LENGTHS ; i++) {
-			li.addAll(vehicleTree.getOverlappers(aheadBounds(i)));
+			double x = getX() + cos * i;
+			double y = getY() + sin * i;
+			vehicleTree.forEachOverlapping(x - r, y - r, x + r, y + r, closestAhead);
 		}
-		Vehicle minV = null;
-		double minDist = Double.POSITIVE_INFINITY;
-		for (Vehicle v : li) {
-			double dist = distanceTo(v); 
-			if (v != this && dist < minDist) {
-				minDist = distanceTo(v);
-				minV = v;
+		return closestAhead.closest;
+	}
+	
+	private class ClosestFinder implements Consumer<Vehicle> {
+		Vehicle closest;
+		double closestDist;
+		
+		void reset() {
+			closest = null;
+			closestDist = Double.POSITIVE_INFINITY;
+		}
+		
+		public void accept(Vehicle v) {
+			if (v != Vehicle.this) {
+				double dist = distanceTo(v);
+				if (dist < closestDist) {
+					closestDist = dist;
+					closest = v;
+				}
 			}
 		}
-		return minV;
 	}
 	
 	private Intersection getIntersectionOn() {
@@ -194,22 +338,33 @@ public class Vehicle extends CircleSprite implements Runnable {
 	
 
 	
-	private void move(double dt) {
-		if (!isFrozen) {
-			lastTimeMoved = System.currentTimeMillis();
-			translate(Math.cos(heading) * speed * dt, Math.sin(heading) * speed * dt);
+	// the speed and position themselves are updated for everyone at once in VehicleStore.integrate
+	private void measureGap() {
+		Vehicle v = getClosestAhead();
+		store.gap[slot] = (v == null ? Double.POSITIVE_INFINITY : distanceTo(v));
+		if (!isFrozen()) {
+			lastTimeMoved = now();
 		}
 	}
-
-	private void moderateSpeed(double dt) {
-		Vehicle v = getClosestAhead();
-		if (v != null) {
-			double lengths = distanceTo(v) / 2 / getRadius();
-			speed = Math.max(0, MAX_SPEED * (lengths - ZERO_SPEED_LENGTHS) / (MAX_SPEED_LENGTHS - ZERO_SPEED_LENGTHS));
-		} else {
-			speed = Math.min(speed + dt * ACCEL, MAX_SPEED);
+	
+	// a vehicle is on a lane once it's passed the lane's start
+	private void updateLane() {
+		Lane now = null;
+		int cursor = store.cursor[slot];
+		if (isAlive() && route != null && !route.isDone(cursor)) {
+			Lane l = route.getLane(cursor);
+			if (l != null && route.get(cursor) != l.getStart()) {
+				now = l;
+			}
+		}
+		if (now != lane) {
+			if (lane != null) lane.leave(this);
+			lane = now;
+			if (lane != null) {
+				lane.enter(this);
+				map.laneEntered(lane);
+			}
 		}
-			
 	}
 	
 	private void handleIntersections() {
@@ -217,6 +372,9 @@ public class Vehicle extends CircleSprite implements Runnable {
 		if (currentIntersection == null) {
 			if (i != null) {
 				enterIntersection(i);
+			} else if (isFrozen()) {
+				// was waiting for room at an intersection that's since been taken away
+				unfreeze();
 			}
 		} else {
 			if (currentIntersection != i) {
@@ -233,33 +391,36 @@ public class Vehicle extends CircleSprite implements Runnable {
 			} else {
 				turnAmount = Math.min(direction * dt * ANGULAR_SPEED, maxTurn);
 			}
-			heading += turnAmount;
+			store.heading[slot] += turnAmount;
 			//if (Math.abs(maxTurn) > .1) System.out.println(String.format("%.2f, %d", maxTurn, direction));
 			if (logging) System.out.println(String.format("\t\t\t\t\t\t\tact  %.2f", turnAmount / Math.PI));
 		}
 	}
 	
 	private void setGoals(double dt) {
-		if (route.isEmpty()) {
+		int cursor = store.cursor[slot];
+		if (route == null || route.isDone(cursor)) {
 			reachGoal();
 		} else {
-			nextGoal = route.peek();
+			nextGoal = route.get(cursor);
 			if (nextGoal != null) {
 
-				if (!isFrozen && speed > MIN_SPEED_TO_TURN) {
+				if (!isFrozen() && getSpeed() > MIN_SPEED_TO_TURN) {
 					turnTowards(nextGoal, dt);
 				}
 				
 				List<Intersection> ints = map.getIntersectionTree().getOverlappers(this);
 				if (this.contains(nextGoal) || (ints.size() > 0 && ints.get(0).getLocation().equals(nextGoal) && ints.get(0).contains(this))) { 
-					prevGoal = route.pop();
+					prevGoal = nextGoal;
+					store.cursor[slot] = route.next(cursor);
 				}
 			}
 		} 
 	}
 
 	private void turnTowards(Point2D p, double dt) {
-		double toGoal = MiscUtils.heading(getLocation(), p);
+		double heading = getHeading();
+		double toGoal = Math.atan2(p.getY() - getY(), p.getX() - getX());
 		double diff = MiscUtils.angleDiff(toGoal, heading);
 		if (logging) System.out.println(String.format("head %.2f \tgoal %.2f \tdiff %.2f", heading / Math.PI, toGoal / Math.PI, diff / Math.PI));
 		if (diff > 0) {
@@ -270,46 +431,49 @@ public class Vehicle extends CircleSprite implements Runnable {
 	}
 	
 	private void reachGoal() {
-		vehiclesReachedGoal++;
-		completedMission = true;
+		store.setFlag(slot, VehicleStore.COMPLETED, true);
 	}
 	
-	public synchronized void die() {
-		this.isAlive = false;
+	public void die() {
+		store.setFlag(slot, VehicleStore.ALIVE, false);
 		leaveIntersection();
+		updateLane();
 	}
 	
 	public void step(double dt) {
+		if (!isAlive() || isWaitingForRoute()) return;
+		tripTime += dt;
 		setGoals(dt);
+		updateLane();
+		if (detour != null && lane != detourAfter) {
+			if (lane == null && !completedMission()) {
+				switchToDetour();
+			} else {
+				detour = null;
+				detourAfter = null;
+			}
+		}
 		handleIntersections();
-		moderateSpeed(dt);
-		move(dt);
+		measureGap();
 		if (this.contains(endGoal)) {
 			reachGoal();
 		}	
 	}
 	
-	public void run() {
-		while (isAlive) {
-			double dt = getDt();
-			step(dt);
-			MiscUtils.sleep(SLEEP_LENGTH);
-		}
-	}
-	
 	
 	public Color getColor(boolean showTrueColor) {
 		if (highlighted) {
 			return MiscUtils.getCycleColor(COLOR_CYCLE_LENGTH);
 		} else if (showTrueColor) {
+			if (color == null) color = MiscUtils.getRandomColor();
 			return color;
 		} else {
-			if (isFrozen()) {
-				return FROZEN_COLOR;
-			} else if (getClosestAhead() != null) {
-				return BRAKE_COLOR;
+			if (isFrozen() || isWaitingForRoute()) {
+				return Colors.FROZEN_COLOR;
+			} else if (store.gap[slot] < Double.POSITIVE_INFINITY) {
+				return Colors.BRAKE_COLOR;
 			} else {
-				return FREE_COLOR;
+				return Colors.FREE_COLOR;
 			}
 		}
 	}
@@ -321,7 +485,8 @@ public class Vehicle extends CircleSprite implements Runnable {
 	public void draw(Graphics2D g, boolean showTrueColor, boolean showTurret, boolean showTrail) {
 		if (showTurret) {
 			g.setStroke(TrafficPanel.STANDARD_STROKE); 
-			g.setColor(TURRET_COLOR);
+			g.setColor(Colors.TURRET_COLOR);
+			double heading = getHeading();
 			double tx = Math.cos(heading) * TURRET_LENGTH;
 			double ty = Math.sin(heading) * TURRET_LENGTH;
 			Point2D turretEnd = MiscUtils.translate(getLocation(), tx, ty);
@@ -339,7 +504,16 @@ public class Vehicle extends CircleSprite implements Runnable {
 	}
 
 	public void drawRoute(Graphics2D g, boolean showTrueColor) {
+		if (route == null) return;
 		Color c = getColor(showTrueColor);
-		this.route.draw(g, getLocation(), c);
+		this.route.draw(g, getLocation(), c, store.cursor[slot]);
+	}
+
+	// not made until something's drawn, so headless runs never start up AWT
+	private static class Colors {
+		static final Color TURRET_COLOR = Color.WHITE;
+		static final Color BRAKE_COLOR = Color.RED;
+		static final Color FREE_COLOR = Color.GREEN;
+		static final Color FROZEN_COLOR = Color.BLUE;
 	}
 }
@@ -1,53 +1,117 @@
-package com.heliomug.job.traffic;
-
-public class VehicleQueue {
-	private Node head;
-	private Node tail;
-	
-	public VehicleQueue() {
-		head = tail = null;
-	}
-	
-	public boolean isEmpty() {
-		return (head == null);
-	}
-	
-	public Vehicle dequeue() {
-		if (head == null) {
-			return null;
-		} else {
-			Vehicle toRet = head.vehicle;
-			head = head.next;
-			return toRet;
-		}
-	}
-	
-	public void enqueue(Vehicle v) {
-		if (head == null) {
-			head = new Node(v);
-			tail = head;
-		} else {
-			Node n = new Node(v);
-			tail.next = n;
-			tail = n;
-		}
-	}
-	
-	public String toString() {
-		StringBuilder sb = new StringBuilder();
-		Node n = head;
-		while (n != null) {
-			sb.append(n.vehicle.toString());
-		}
-		return sb.toString();
-	}
-	
-	private class Node {
-		Vehicle vehicle;
-		Node next;
-		
-		public Node(Vehicle v) {
-			vehicle = v;
-		}
-	}
-}
+package com.heliomug.job.traffic;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded first-in first-out queue of vehicles on a ring buffer, safe for any number of
+ * threads to enqueue into while one thread dequeues, without locks.  Producers claim a
+ * slot by moving the tail on, then fill it in; the consumer empties slots and moves the
+ * head on.  size() and isEmpty() can be read from anywhere.
+ *
+ * The head and tail are kept on cache lines of their own (see the padding classes
+ * below), so producers bumping the tail don't keep invalidating the consumer's head.
+ */
+public class VehicleQueue extends VehicleQueueHead {
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static final AtomicLongFieldUpdater<VehicleQueueTail> TAIL = AtomicLongFieldUpdater.newUpdater(VehicleQueueTail.class, "tail");
+	private static final AtomicLongFieldUpdater<VehicleQueueHead> HEAD = AtomicLongFieldUpdater.newUpdater(VehicleQueueHead.class, "head");
+
+	long p10, p11, p12, p13, p14, p15, p16;
+
+	private final AtomicReferenceArray<Vehicle> slots;
+	private final int mask;
+
+	public VehicleQueue() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	// the capacity's rounded up to a power of two
+	public VehicleQueue(int capacity) {
+		int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		slots = new AtomicReferenceArray<Vehicle>(size);
+		mask = size - 1;
+	}
+
+	public int capacity() { return mask + 1; }
+
+	public boolean isEmpty() {
+		return head == tail;
+	}
+
+	// a snapshot; producers may be adding more as it's read
+	public int size() {
+		while (true) {
+			long h = head;
+			long t = tail;
+			if (h == head) {
+				return (int)Math.max(0, Math.min(t - h, capacity()));
+			}
+		}
+	}
+
+	// returns false, leaving v out, if the queue's full
+	public boolean enqueue(Vehicle v) {
+		while (true) {
+			long t = tail;
+			if (t - head >= capacity()) return false;
+			if (TAIL.compareAndSet(this, t, t + 1)) {
+				slots.lazySet((int)t & mask, v);
+				return true;
+			}
+		}
+	}
+
+	// consumer only; null if empty
+	public Vehicle dequeue() {
+		Vehicle v = peek();
+		if (v != null) {
+			long h = head;
+			slots.lazySet((int)h & mask, null);
+			HEAD.lazySet(this, h + 1);
+		}
+		return v;
+	}
+
+	// consumer only; the vehicle dequeue would return, without taking it
+	public Vehicle peek() {
+		long h = head;
+		if (h == tail) return null;
+		Vehicle v;
+		// a producer's claimed the slot but not filled it in yet
+		while ((v = slots.get((int)h & mask)) == null) {
+			Thread.yield();
+		}
+		return v;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		long h = head;
+		long t = tail;
+		for (long i = h ; i < t ; i++) {
+			if (i > h) sb.append(", ");
+			sb.append(slots.get((int)i & mask));
+		}
+		return sb.append("]").toString();
+	}
+}
+
+// padding on both sides of each counter: a cache line is 64 bytes, and 7 longs and a header fill one
+
+abstract class VehicleQueuePad0 {
+	long p00, p01, p02, p03, p04, p05, p06;
+}
+
+abstract class VehicleQueueTail extends VehicleQueuePad0 {
+	volatile long tail;
+}
+
+abstract class VehicleQueuePad1 extends VehicleQueueTail {
+	long p20, p21, p22, p23, p24, p25, p26;
+}
+
+abstract class VehicleQueueHead extends VehicleQueuePad1 {
+	volatile long head;
+}
@@ -0,0 +1,101 @@
+package com.heliomug.job.traffic;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayDeque;
+
+/**
+ * Measures how many vehicles a second get through a VehicleQueue with several threads
+ * enqueuing and one dequeuing, against an ArrayDeque behind a lock doing the same.
+ *
+ * Usage: VehicleQueueBenchmark [MAX_PRODUCERS] [VEHICLES_PER_PRODUCER]
+ */
+public class VehicleQueueBenchmark {
+	private static final int DEFAULT_MAX_PRODUCERS = 8;
+	private static final int DEFAULT_PER_PRODUCER = 2000000;
+	private static final int CAPACITY = 1024;
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws InterruptedException {
+		int maxProducers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_PRODUCERS;
+		int perProducer = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PER_PRODUCER;
+
+		Map map = new Map();
+		VehicleStore store = new VehicleStore();
+		SpatialIndex<Vehicle> index = new QuadTree<Vehicle>();
+		Vehicle[] vehicles = new Vehicle[64];
+		for (int i = 0 ; i < vehicles.length ; i++) {
+			vehicles[i] = new Vehicle(map, index, store, new Point2D.Double(i, 0));
+		}
+
+		System.out.println(String.format("%d cpus, %d vehicles per producer, best of %d", Runtime.getRuntime().availableProcessors(), perProducer, ROUNDS));
+		System.out.println(String.format("%9s %14s %14s", "producers", "ring M/s", "locked M/s"));
+		for (int producers = 1 ; producers <= maxProducers ; producers *= 2) {
+			double ring = 0;
+			double locked = 0;
+			for (int round = 0 ; round < ROUNDS ; round++) {
+				ring = Math.max(ring, run(new RingQueue(), producers, perProducer, vehicles));
+				locked = Math.max(locked, run(new LockedQueue(), producers, perProducer, vehicles));
+			}
+			System.out.println(String.format("%9d %14.2f %14.2f", producers, ring / 1e6, locked / 1e6));
+		}
+	}
+
+	// vehicles per second through the queue
+	private static double run(Queue q, int producers, int perProducer, Vehicle[] vehicles) throws InterruptedException {
+		Thread[] threads = new Thread[producers];
+		for (int p = 0 ; p < producers ; p++) {
+			final int offset = p;
+			threads[p] = new Thread(() -> {
+				for (int i = 0 ; i < perProducer ; i++) {
+					Vehicle v = vehicles[(i + offset) % vehicles.length];
+					while (!q.enqueue(v)) {
+						Thread.yield();
+					}
+				}
+			});
+		}
+		long total = (long)producers * perProducer;
+		long start = System.nanoTime();
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (long taken = 0 ; taken < total ; ) {
+			if (q.dequeue() != null) {
+				taken++;
+			} else {
+				Thread.yield();
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		for (Thread t : threads) {
+			t.join();
+		}
+		return total * 1e9 / nanos;
+	}
+
+	private interface Queue {
+		boolean enqueue(Vehicle v);
+		Vehicle dequeue();
+	}
+
+	private static class RingQueue implements Queue {
+		private final VehicleQueue q = new VehicleQueue(CAPACITY);
+		public boolean enqueue(Vehicle v) { return q.enqueue(v); }
+		public Vehicle dequeue() { return q.dequeue(); }
+	}
+
+	// bounded the same, so both make producers wait when the consumer falls behind
+	private static class LockedQueue implements Queue {
+		private final ArrayDeque<Vehicle> q = new ArrayDeque<Vehicle>(CAPACITY);
+
+		public synchronized boolean enqueue(Vehicle v) {
+			if (q.size() >= CAPACITY) return false;
+			q.add(v);
+			return true;
+		}
+
+		public synchronized Vehicle dequeue() {
+			return q.poll();
+		}
+	}
+}
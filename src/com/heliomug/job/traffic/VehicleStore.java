@@ -0,0 +1,172 @@
+package com.heliomug.job.traffic;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * Kinematic state of every live vehicle, kept in parallel primitive arrays.  A vehicle
+ * is a view onto one slot; slots stay dense, so removing a vehicle moves the last one
+ * into its place.
+ */
+public class VehicleStore {
+	public static final int ALIVE = 1;
+	public static final int FROZEN = 2;
+	public static final int COMPLETED = 4;
+	// waiting for a route; stays put until it has one
+	public static final int ROUTING = 8;
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	double[] x;
+	double[] y;
+	double[] heading;
+	double[] speed;
+	double[] radius;
+	double[] gap;
+	double[] indexedX;
+	double[] indexedY;
+	int[] flags;
+	int[] cursor;
+	
+	private Vehicle[] vehicles;
+	private int size;
+	
+	public VehicleStore() {
+		this(INITIAL_CAPACITY);
+	}
+	
+	public VehicleStore(int capacity) {
+		x = new double[capacity];
+		y = new double[capacity];
+		heading = new double[capacity];
+		speed = new double[capacity];
+		radius = new double[capacity];
+		gap = new double[capacity];
+		indexedX = new double[capacity];
+		indexedY = new double[capacity];
+		flags = new int[capacity];
+		cursor = new int[capacity];
+		vehicles = new Vehicle[capacity];
+		size = 0;
+	}
+	
+	public int size() { return size; }
+	public Vehicle get(int slot) { return vehicles[slot]; }
+	
+	public boolean contains(Vehicle v) {
+		int slot = v.getSlot();
+		return slot < size && vehicles[slot] == v;
+	}
+	
+	public boolean hasFlag(int slot, int flag) { return (flags[slot] & flag) != 0; }
+	
+	public void setFlag(int slot, int flag, boolean on) {
+		if (on) {
+			flags[slot] |= flag;
+		} else {
+			flags[slot] &= ~flag;
+		}
+	}
+	
+	public int add(Vehicle v, double x, double y, double radius) {
+		if (size == vehicles.length) {
+			grow();
+		}
+		int slot = size++;
+		this.x[slot] = x;
+		this.y[slot] = y;
+		this.heading[slot] = 0;
+		this.speed[slot] = 0;
+		this.radius[slot] = radius;
+		this.gap[slot] = Double.POSITIVE_INFINITY;
+		this.indexedX[slot] = x;
+		this.indexedY[slot] = y;
+		this.flags[slot] = ALIVE;
+		this.cursor[slot] = -1;
+		vehicles[slot] = v;
+		return slot;
+	}
+	
+	/*
+	 * Where each vehicle was when the spatial index last saw it, so the index can find
+	 * it again after it moves.
+	 */
+	public boolean movedSinceIndexed(int slot) {
+		return x[slot] != indexedX[slot] || y[slot] != indexedY[slot];
+	}
+	
+	public Rectangle2D getIndexedBounds(int slot, Rectangle2D into) {
+		double r = radius[slot];
+		into.setRect(indexedX[slot] - r, indexedY[slot] - r, r * 2, r * 2);
+		return into;
+	}
+	
+	public void markIndexed(int slot) {
+		indexedX[slot] = x[slot];
+		indexedY[slot] = y[slot];
+	}
+	
+	public void remove(int slot) {
+		int last = --size;
+		if (slot != last) {
+			x[slot] = x[last];
+			y[slot] = y[last];
+			heading[slot] = heading[last];
+			speed[slot] = speed[last];
+			radius[slot] = radius[last];
+			gap[slot] = gap[last];
+			indexedX[slot] = indexedX[last];
+			indexedY[slot] = indexedY[last];
+			flags[slot] = flags[last];
+			cursor[slot] = cursor[last];
+			vehicles[slot] = vehicles[last];
+			vehicles[slot].setSlot(slot);
+		}
+		vehicles[last] = null;
+	}
+	
+	private void grow() {
+		int capacity = vehicles.length * 2;
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		heading = Arrays.copyOf(heading, capacity);
+		speed = Arrays.copyOf(speed, capacity);
+		radius = Arrays.copyOf(radius, capacity);
+		gap = Arrays.copyOf(gap, capacity);
+		indexedX = Arrays.copyOf(indexedX, capacity);
+		indexedY = Arrays.copyOf(indexedY, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		cursor = Arrays.copyOf(cursor, capacity);
+		vehicles = Arrays.copyOf(vehicles, capacity);
+	}
+	
+	/*
+	 * Moderates every vehicle's speed from the gap to whatever is ahead of it (set during
+	 * the vehicle phase) and moves the ones that aren't frozen.
+	 */
+	public void integrate(double dt) {
+		double zero = Vehicle.ZERO_SPEED_LENGTHS;
+		double span = Vehicle.MAX_SPEED_LENGTHS - zero;
+		for (int i = 0 ; i < size ; i++) {
+			int f = flags[i];
+			if ((f & ALIVE) == 0) continue;
+			if ((f & ROUTING) != 0) {
+				speed[i] = 0;
+				continue;
+			}
+			double s;
+			if (gap[i] < Double.POSITIVE_INFINITY) {
+				double lengths = gap[i] / 2 / radius[i];
+				s = Math.max(0, Vehicle.MAX_SPEED * (lengths - zero) / span);
+			} else {
+				s = Math.min(speed[i] + dt * Vehicle.ACCEL, Vehicle.MAX_SPEED);
+			}
+			speed[i] = s;
+			if ((f & FROZEN) == 0) {
+				double h = heading[i];
+				x[i] += Math.cos(h) * s * dt;
+				y[i] += Math.sin(h) * s * dt;
+			}
+		}
+	}
+}
@@ -3,12 +3,20 @@ package com.heliomug.job.traffic;
 import java.awt.Graphics2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
 
-public class World extends Ageable implements Runnable {
+public class World extends Ageable {
 	
-	private static final int SLEEP_TIME = 40;
 	private static final int DEFAULT_SPAWN_DELAY = 400;
 	private static final int DEFAULT_MAX_VEHICLES = 10; 
 	private static final boolean DEFAULT_SHOW_TREE = false;
@@ -18,17 +26,46 @@ public class World extends Ageable implements Runnable {
 	private static final boolean DEFAULT_SHOW_TRAILS = false;
 	
 	private static final int SPAWN_DIST = 10;
+	public static final int DEFAULT_REROUTE_CHECKS_PER_TICK = 200;
+	public static final double DEFAULT_REVISIT_FRACTION = .002;
+	private static final double GRID_CELL_SIZE = Vehicle.DEFAULT_RADIUS * 8;
 	
 	
 	private long lastSpawn;
 	
 	private List<Vehicle> vehicles;
-	private QuadTree<Vehicle> vehicleTree; 
+	private VehicleStore vehicleStore;
+	private SpatialIndex<Vehicle> vehicleTree; 
 	
 	private Map map;
+	private SimulationEngine engine;
+	private RoutingService routing;
+	
+	// lanes that got dearer, and the vehicles still to be checked for routes over them
+	private HashSet<Lane> incidentLanes;
+	private ArrayDeque<Vehicle> rerouteChecks;
+	private int rerouteChecksPerTick;
+	private long detours;
+	
+	// null unless routing around congestion
+	private CongestionMonitor congestion;
+	// fraction of vehicles looked at each tick for routes through congestion, round robin
+	private double revisitFraction;
+	private double revisitCredit;
+	private int revisitNext;
+	
+	private Rectangle2D scratchBounds;
+	// shared with the map
+	private Random random;
 	
 	private int spawnDelay;
 	private int maxVehicles;
+	private boolean started;
+	
+	// counted per world, since several can run at once
+	private int vehiclesEverBorn;
+	private int tripsFinished;
+	private double totalTripTime;
 	
 	public World() {
 		reset();
@@ -36,47 +73,248 @@ public class World extends Ageable implements Runnable {
 
 	public void reset() {
 		map = new Map();
+		random = new Random();
+		map.setRandom(random);
+		engine = new SimulationEngine(this);
+		if (routing != null) routing.shutdown();
+		routing = new RoutingService();
 		vehicles = new ArrayList<Vehicle>();
+		vehicleStore = new VehicleStore();
+		incidentLanes = new HashSet<Lane>();
+		rerouteChecks = new ArrayDeque<Vehicle>();
+		rerouteChecksPerTick = DEFAULT_REROUTE_CHECKS_PER_TICK;
+		detours = 0;
+		congestion = null;
+		revisitFraction = DEFAULT_REVISIT_FRACTION;
+		revisitCredit = 0;
+		revisitNext = 0;
 		vehicleTree = new QuadTree<Vehicle>();
-		lastSpawn = System.currentTimeMillis();
+		scratchBounds = new Rectangle2D.Double();
 		spawnDelay = DEFAULT_SPAWN_DELAY;
 		maxVehicles = DEFAULT_MAX_VEHICLES;
+		started = false;
+		vehiclesEverBorn = 0;
+		tripsFinished = 0;
+		totalTripTime = 0;
+		setClock(engine.getClock());
+	}
+	
+	public void setClock(SimClock clock) {
+		super.setClock(clock);
+		map.setClock(clock);
+		for (Vehicle v : vehicles) {
+			v.setClock(clock);
+		}
+		lastSpawn = now();
 	}
 	
 	public int getMaxVehicles() { return maxVehicles; }
 	public int getVehiclesPerSecond() { return 1000 / spawnDelay; }
 	public int getNumberOfVehicles() { return vehicles.size(); }
+	public int getVehiclesEverBorn() { return vehiclesEverBorn; }
+	public int getTripsFinished() { return tripsFinished; }
+	public long getDetours() { return detours; }
+	public double getMeanTripTime() { return tripsFinished == 0 ? 0 : totalTripTime / tripsFinished; }
 	public void setMaxVehicles(int n) { maxVehicles = n; }
 	public void setSpawnDelay(int t) { 
 		spawnDelay = t;
-		lastSpawn = System.currentTimeMillis();
+		lastSpawn = now();
+	}
+
+	public Map getMap() { return map; }
+	public List<Vehicle> getVehicles() { return vehicles; }
+	public VehicleStore getVehicleStore() { return vehicleStore; }
+	public SimulationEngine getEngine() { return engine; }
+	public RoutingService getRoutingService() { return routing; }
+	
+	public synchronized void setRoutingService(RoutingService service) {
+		routing.deliver(vehicleStore);
+		routing.shutdown();
+		routing = service;
+	}
+
+	/*
+	 * Swaps the structure used to find nearby vehicles; a QuadTree by default, or a
+	 * GridIndex when vehicles are dense and all the same size.
+	 */
+	public synchronized void setVehicleIndex(SpatialIndex<Vehicle> index) {
+		vehicleTree = index;
+		for (Vehicle v : vehicles) {
+			v.setVehicleIndex(index);
+		}
+		if (started) {
+			rebuildVehicleTree();
+		} else {
+			vehicleTree.refill(vehicles);
+		}
+	}
+	
+	public void useGridIndex() {
+		setVehicleIndex(new GridIndex<Vehicle>(GRID_CELL_SIZE));
+	}
+	
+	public void useQuadTree() {
+		setVehicleIndex(new QuadTree<Vehicle>());
+	}
+
+	/*
+	 * Edits the map between ticks, once any routes being found on other threads are done.
+	 * The graph is patched rather than rebuilt, so roads can be opened and closed mid-run.
+	 */
+	public synchronized void editMap(Consumer<Map> edit) {
+		routing.quiesce();
+		edit.accept(map);
+	}
+
+	/*
+	 * Incidents.  Vehicles whose remaining route uses a lane that's closed or made dearer
+	 * are found new routes, a few each tick so a big incident doesn't stall one.  Ones
+	 * part way along a lane finish it first.  A lane made cheaper only helps routes found
+	 * afterwards.
+	 */
+	public synchronized double closeLane(Lane lane) {
+		return setLaneCost(lane, Double.POSITIVE_INFINITY);
+	}
+	
+	public synchronized double reopenLane(Lane lane) {
+		return setLaneCost(lane, lane.getLength());
+	}
+	
+	public synchronized double setLaneCost(Lane lane, double cost) {
+		// anyone whose route was found before the change gets it now, so they're checked too
+		routing.deliver(vehicleStore);
+		double old = map.setLaneCost(lane, cost);
+		if (cost > old) {
+			incidentLanes.add(lane);
+			rerouteChecks = new ArrayDeque<Vehicle>(vehicles);
+		}
+		return old;
+	}
+	
+	// how many vehicles a tick checks for routes over lanes that got dearer
+	public void setRerouteChecksPerTick(int n) { rerouteChecksPerTick = n; }
+	
+	private void continueRerouting() {
+		for (int i = 0 ; i < rerouteChecksPerTick && !rerouteChecks.isEmpty() && routing.hasCapacity() ; i++) {
+			Vehicle v = rerouteChecks.poll();
+			if (!needsCheck(v) || !v.routeCrosses(incidentLanes)) continue;
+			if (v.getLane() == null) {
+				// between lanes; looked at again once it's on one
+				rerouteChecks.add(v);
+			} else {
+				requestDetour(v);
+			}
+		}
+		if (rerouteChecks.isEmpty()) {
+			incidentLanes.clear();
+		}
+	}
+
+	/*
+	 * Routes by measured travel time instead of just length, refreshed every so many
+	 * seconds.  Vehicles are revisited a few at a time, and any whose route ahead runs
+	 * into a congested lane are found a detour.  Pass null to go back to plain lengths.
+	 */
+	public synchronized void setCongestionMonitor(CongestionMonitor monitor) {
+		congestion = monitor;
+		if (monitor == null) {
+			routing.quiesce();
+			MapGraph graph = map.getGraph();
+			graph.setDelays(new double[graph.getEdgeCount()], 0);
+		}
+	}
+	
+	public void useCongestionRouting(double refreshSeconds) {
+		setCongestionMonitor(new CongestionMonitor(refreshSeconds, CongestionMonitor.DEFAULT_TOLERANCE));
+	}
+	
+	public CongestionMonitor getCongestionMonitor() { return congestion; }
+	
+	// a fraction of the vehicles per tick, so routing work doesn't grow in lumps with the population
+	public void setRevisitFraction(double fraction) { revisitFraction = fraction; }
+	
+	private void revisitVehicles(double dt) {
+		congestion.step(dt, map.getGraph());
+		Set<Lane> congested = congestion.getCongestedLanes();
+		revisitCredit += revisitFraction * vehicles.size();
+		while (revisitCredit >= 1 && !vehicles.isEmpty() && routing.hasCapacity()) {
+			revisitCredit--;
+			revisitNext = revisitNext % vehicles.size();
+			Vehicle v = vehicles.get(revisitNext++);
+			if (!congested.isEmpty() && needsCheck(v) && v.getLane() != null && v.routeCrosses(congested)) {
+				requestDetour(v);
+			}
+		}
+		revisitCredit = Math.min(revisitCredit, 1);
+	}
+	
+	private boolean needsCheck(Vehicle v) {
+		return v.isAlive() && !v.isWaitingForRoute() && !v.completedMission();
+	}
+	
+	// only for vehicles on a lane; the detour starts where it ends
+	private void requestDetour(Vehicle v) {
+		Lane on = v.getLane();
+		routing.reroute(v, on.getFinish(), on);
+		detours++;
 	}
 
 	public Rectangle2D getMapBounds() {	return map.getBounds(); } 
 
-	public void setLightDuration(int dur) { map.setLightDuration(dur); }
+	// both reschedule lights on the timing wheel, so they wait for the engine to be between ticks
+	public synchronized void setLightDuration(int dur) { map.setLightDuration(dur); }
+	public synchronized void setSignalPlan(SignalPlan plan) { map.setSignalPlan(plan); }
+	
+	/*
+	 * With the same seed, map and settings, and the engine's simulated clock, a run
+	 * comes out the same every time.
+	 */
+	public void setSeed(long seed) { random.setSeed(seed); }
+	
+	/*
+	 * Rebuilds the tree over the whole map (plus where cars spawn), after which it's
+	 * only patched as vehicles move, arrive and leave.
+	 */
+	public synchronized void rebuildVehicleTree() {
+		Rectangle2D b = map.getBounds();
+		double m = SPAWN_DIST * 2;
+		vehicleTree.refill(vehicles, new Rectangle2D.Double(b.getX() - m, b.getY() - m, b.getWidth() + m * 2, b.getHeight() + m * 2));
+		for (int i = 0 ; i < vehicleStore.size() ; i++) {
+			vehicleStore.markIndexed(i);
+		}
+	}
 	
 	public synchronized void updateVehicleTree() {
-		vehicleTree.refill(vehicles);
+		for (int i = 0 ; i < vehicleStore.size() ; i++) {
+			if (vehicleStore.movedSinceIndexed(i)) {
+				vehicleTree.update(vehicleStore.get(i), vehicleStore.getIndexedBounds(i, scratchBounds));
+				vehicleStore.markIndexed(i);
+			}
+		}
 	}
 	
-	private void step(double dt) {
-		updateVehicleTree();
+	void step(double dt) {
+		routing.deliver(vehicleStore);
 		maybeSpawn();
 		dealWithFinishedVehicles();
+		continueRerouting();
+		if (congestion != null) {
+			revisitVehicles(dt);
+		}
+		updateVehicleTree();
+		routing.flush(map.getGraph());
 	}
 
 	private void maybeSpawn() {
-		if (System.currentTimeMillis() - lastSpawn > spawnDelay) {
+		if (now() - lastSpawn > spawnDelay) {
 			if (vehicles.size() < maxVehicles) {
 				Rectangle2D bounds = getBounds();
-				double x = ((int)(Math.random() * 2) * 2 - 1) * (bounds.getWidth() / 2 + SPAWN_DIST); 
-				double y = ((int)(Math.random() * 2) * 2 - 1) * (bounds.getHeight() / 2 + SPAWN_DIST);
+				double x = (random.nextInt(2) * 2 - 1) * (bounds.getWidth() / 2 + SPAWN_DIST); 
+				double y = (random.nextInt(2) * 2 - 1) * (bounds.getHeight() / 2 + SPAWN_DIST);
 				x += bounds.getX() + bounds.getWidth() / 2;
 				y += bounds.getY() + bounds.getHeight() / 2;
-				Point2D p = new Point2D.Double(x, y);
-				if (vehicleTree.getOverlappers(p).size() == 0) {
-					spawnCarAt(p.getX(), p.getY());
+				if (!vehicleTree.anyOverlapping(x, y, x, y)) {
+					spawnCarAt(x, y);
 					lastSpawn += spawnDelay;
 				}
 			}
@@ -98,30 +336,32 @@ public class World extends Ageable implements Runnable {
 	
 	public synchronized void spawnCarAt(double x, double y) {
 		Point2D finish = map.getRandomIntersection().getLocation();
-		Point2D s = new Point2D.Double(x, y);
-		Vehicle v = new Vehicle(map, vehicleTree, s, finish);
-		if (vehicleTree.getOverlappers(v).size() == 0) {
+		double r = Vehicle.DEFAULT_RADIUS;
+		if (routing.hasCapacity() && !vehicleTree.anyOverlapping(x - r, y - r, x + r, y + r)) {
+			Point2D start = new Point2D.Double(x, y);
+			Vehicle v = new Vehicle(map, vehicleTree, vehicleStore, start);
 			addVehicle(v);
+			routing.request(v, start, finish);
 		}
 	}
 	
-	public void start() {
-		Thread t = new Thread(this);
-		t.start();
-		map.start();
-	}
-	
-	public void run() {
-		while (true) {
-			step(getDt());
-			try {
-				Thread.sleep(SLEEP_TIME);
-			} catch (InterruptedException e) {
-				System.err.println("Painting OVERRRR (Interrupted)");
-				e.printStackTrace();
-			}
+	private void startMap() {
+		if (!started) {
+			map.start();
+			rebuildVehicleTree();
+			started = true;
 		}
 	}
+	
+	public void start() {
+		startMap();
+		engine.start();
+	}
+	
+	public void runFor(double seconds) {
+		startMap();
+		engine.runFor(seconds);
+	}
 
 	public Rectangle2D getBounds() {
 		return map.getBounds();
@@ -130,8 +370,10 @@ public class World extends Ageable implements Runnable {
 	private synchronized void dealWithFinishedVehicles() {
 		for (Vehicle v : vehicles) {
 			if (v.completedMission()) {
+				tripsFinished++;
+				totalTripTime += v.getTripTime();
 				if (getNumberOfVehicles() <= maxVehicles) {
-					v.setNewGoals();
+					routing.request(v, v.getLocation(), map.getRandomIntersection().getLocation());
 				} else {
 					v.die();
 				}
@@ -140,7 +382,9 @@ public class World extends Ageable implements Runnable {
 		for (int i = 0 ; i < vehicles.size() ; i++) {
 			Vehicle v = vehicles.get(i);
 			if (v.isDead()) {
-				vehicles.remove(v);
+				vehicles.remove(i);
+				vehicleTree.remove(v, vehicleStore.getIndexedBounds(v.getSlot(), scratchBounds));
+				vehicleStore.remove(v.getSlot());
 				i--;
 			}
 		}
@@ -166,10 +410,11 @@ public class World extends Ageable implements Runnable {
 	}
 
 	public synchronized void addVehicle(Vehicle v) {
+		vehiclesEverBorn++;
+		v.setNumber(vehiclesEverBorn);
 		vehicles.add(v);
-		Thread t = new Thread(v);
-		t.start();
-		updateVehicleTree();
+		vehicleTree.insert(v);
+		vehicleStore.markIndexed(v.getSlot());
 	}
 	
 	public synchronized Vehicle getVehicleAt(double x, double y) {
@@ -190,6 +435,72 @@ public class World extends Ageable implements Runnable {
 		if (v != null) v.logging = true;
 	}
 	
+	/*
+	 * Scenario files are plain text, one command per line ('#' starts a comment):
+	 *   lit NAME X Y [LIGHT_DURATION]
+	 *   allway NAME X Y
+	 *   plain NAME X Y
+	 *   street NAME NAME [MEDIAN]
+	 *   spawnDelay MILLIS
+	 *   maxVehicles N
+	 */
+	public static World loadScenario(String filename) throws IOException {
+		World w = new World();
+		HashMap<String, Intersection> named = new HashMap<String, Intersection>();
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				int hash = line.indexOf('#');
+				if (hash >= 0) line = line.substring(0, hash);
+				String[] tok = line.trim().split("\\s+");
+				if (tok[0].length() == 0) continue;
+				try {
+					w.loadScenarioLine(tok, named);
+				} catch (RuntimeException e) {
+					throw new IOException(String.format("%s:%d: %s", filename, lineNumber, e.getMessage()), e);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return w;
+	}
+	
+	private void loadScenarioLine(String[] tok, HashMap<String, Intersection> named) {
+		String cmd = tok[0];
+		if (cmd.equals("lit") || cmd.equals("allway") || cmd.equals("plain")) {
+			double x = Double.parseDouble(tok[2]);
+			double y = Double.parseDouble(tok[3]);
+			Intersection i;
+			if (cmd.equals("lit")) {
+				i = tok.length > 4 ? new IntersectionLit(x, y, Integer.parseInt(tok[4])) : new IntersectionLit(x, y);
+			} else if (cmd.equals("allway")) {
+				i = new IntersectionAllWay(x, y);
+			} else {
+				i = new Intersection(x, y);
+			}
+			named.put(tok[1], i);
+			map.addIntersection(i);
+		} else if (cmd.equals("street")) {
+			Intersection one = named.get(tok[1]);
+			Intersection two = named.get(tok[2]);
+			if (one == null || two == null) {
+				throw new IllegalArgumentException("unknown intersection in street " + tok[1] + " " + tok[2]);
+			}
+			double median = tok.length > 3 ? Double.parseDouble(tok[3]) : Lane.DEFAULT_LANE_WIDTH / 2;
+			map.addTwoWayStreet(one, two, median);
+		} else if (cmd.equals("spawnDelay")) {
+			setSpawnDelay(Integer.parseInt(tok[1]));
+		} else if (cmd.equals("maxVehicles")) {
+			setMaxVehicles(Integer.parseInt(tok[1]));
+		} else {
+			throw new IllegalArgumentException("unknown command " + cmd);
+		}
+	}
+	
 	public static World smallWorld() {
 		World m = new World();
 		Intersection one = new IntersectionLit(0, 0);
@@ -201,7 +512,7 @@ public class World extends Ageable implements Runnable {
 		m.map.addTwoWayStreet(one, two, 1);
 		m.map.addTwoWayStreet(three, two, 1);
 		
-		Vehicle v = new Vehicle(m.map, m.vehicleTree, new Point2D.Double(10, 10), new Point2D.Double(30, 30));
+		Vehicle v = new Vehicle(m.map, m.vehicleTree, m.vehicleStore, new Point2D.Double(10, 10), new Point2D.Double(30, 30));
 		m.addVehicle(v);
 		m.setSpawnDelay(Integer.MAX_VALUE);
 		
@@ -0,0 +1,47 @@
+package com.heliomug.job.traffic;
+
+/**
+ * Runs the default world headless for a while under each RoutingStrategy, so a strategy
+ * whose routes the vehicles or intersections can't follow shows up as a crash or as
+ * nobody getting anywhere.  No test framework: exits non-zero on failure.
+ *
+ * Usage: RoutingStrategyTest [SECONDS]
+ */
+public class RoutingStrategyTest {
+	private static final double DEFAULT_SECONDS = 30;
+	private static final int VEHICLES = 20;
+	private static final long SEED = 1;
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : DEFAULT_SECONDS;
+		int failures = 0;
+		for (RoutingStrategy strategy : RoutingStrategy.values()) {
+			String problem;
+			try {
+				World world = World.defaultWorld();
+				world.setSeed(SEED);
+				world.setMaxVehicles(VEHICLES);
+				world.setRoutingService(new RoutingService(0, RoutingService.DEFAULT_CAPACITY, RoutingService.DEFAULT_MAX_BATCH));
+				if (strategy == RoutingStrategy.CONTRACTION_HIERARCHY) {
+					world.getMap().useContractionHierarchy(null);
+				} else {
+					world.getMap().setRoutingStrategy(strategy);
+				}
+				world.runFor(seconds);
+				problem = world.getTripsFinished() > 0 ? null : "no trips finished";
+				System.out.println(String.format("%-22s %d trips", strategy, world.getTripsFinished()));
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				problem = e.toString();
+			}
+			if (problem != null) {
+				System.out.println(String.format("%-22s FAILED: %s", strategy, problem));
+				failures++;
+			}
+		}
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+}